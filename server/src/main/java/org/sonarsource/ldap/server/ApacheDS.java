@@ -23,12 +23,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.apache.directory.api.ldap.model.constants.SupportedSaslMechanisms;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
 import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.ldif.ChangeType;
@@ -42,9 +47,12 @@ import org.apache.directory.server.core.api.InstanceLayout;
 import org.apache.directory.server.core.factory.DefaultDirectoryServiceFactory;
 import org.apache.directory.server.core.kerberos.KeyDerivationInterceptor;
 import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.security.TlsKeyGenerator;
 import org.apache.directory.server.kerberos.KerberosConfig;
 import org.apache.directory.server.kerberos.kdc.KdcServer;
 import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.handlers.extended.StartTlsHandler;
 import org.apache.directory.server.ldap.handlers.sasl.MechanismHandler;
 import org.apache.directory.server.ldap.handlers.sasl.cramMD5.CramMd5MechanismHandler;
 import org.apache.directory.server.ldap.handlers.sasl.digestMD5.DigestMd5MechanismHandler;
@@ -53,6 +61,7 @@ import org.apache.directory.server.ldap.handlers.sasl.plain.PlainMechanismHandle
 import org.apache.directory.server.protocol.shared.transport.TcpTransport;
 import org.apache.directory.server.protocol.shared.transport.UdpTransport;
 import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.apache.mina.filter.ssl.SslFilter;
 import org.apache.mina.util.AvailablePortFinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,6 +87,7 @@ public final class ApacheDS {
     return new ApacheDS(realm, baseDn)
       .startDirectoryService(workDir)
       .startKdcServer()
+      .generateCertificate()
       .startLdapServer(port == null ? AvailablePortFinder.getNextAvailable(1024) : port)
       .activateNis();
   }
@@ -126,6 +136,21 @@ public final class ApacheDS {
     }
   }
 
+  /**
+   * Returns number of client connections, on which TLS was started.
+   * Note that certificate of server is self-signed.
+   */
+  public int getTlsSessionCount() {
+    int count = 0;
+    for (LdapSession session : ldapServer.getLdapSessionManager().getSessions()) {
+      SslFilter sslFilter = (SslFilter) session.getIoSession().getFilterChain().get(SslFilter.class);
+      if (sslFilter != null && sslFilter.isSslStarted(session.getIoSession())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
   public void disableAnonymousAccess() {
     directoryService.setAllowAnonymousAccess(false);
   }
@@ -186,6 +211,8 @@ public final class ApacheDS {
     // The base DN containing users that can be SASL authenticated.
     ldapServer.setSearchBaseDn(baseDn);
 
+    ldapServer.addExtendedOperationHandler(new StartTlsHandler());
+
     ldapServer.start();
 
     return this;
@@ -222,6 +249,22 @@ public final class ApacheDS {
     return this;
   }
 
+  /**
+   * Default certificate used for StartTLS has a key, which is too weak for recent JDKs,
+   * so it is replaced by a self-signed certificate issued for "localhost".
+   */
+  private ApacheDS generateCertificate() throws Exception {
+    Dn adminDn = new Dn(directoryService.getSchemaManager(), "uid=admin,ou=system");
+    Entry adminEntry = new DefaultEntry(directoryService.getSchemaManager(), directoryService.getAdminSession().lookup(adminDn));
+    TlsKeyGenerator.addKeyPair(adminEntry, TlsKeyGenerator.CERTIFICATE_PRINCIPAL_DN, "CN=localhost, OU=Directory, O=ASF, C=US", "RSA", 2048);
+    List<Modification> modifications = new ArrayList<>();
+    for (String attribute : Arrays.asList(TlsKeyGenerator.PRIVATE_KEY_AT, TlsKeyGenerator.PUBLIC_KEY_AT, TlsKeyGenerator.USER_CERTIFICATE_AT)) {
+      modifications.add(new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, adminEntry.get(attribute)));
+    }
+    directoryService.getAdminSession().modify(adminDn, modifications);
+    return this;
+  }
+
   /**
    * This seems to be required for objectClass posixGroup.
    */
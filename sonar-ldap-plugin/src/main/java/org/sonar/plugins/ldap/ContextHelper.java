@@ -32,6 +32,11 @@ public final class ContextHelper {
 
   private static final Logger LOG = Loggers.get(ContextHelper.class);
 
+  /**
+   * Selector of RFC 4511 for no attributes, used when only DN of entry is needed, or only response of server matters.
+   */
+  static final String[] NO_ATTRIBUTES = {"1.1"};
+
   private ContextHelper() {
   }
 
@@ -0,0 +1,173 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Keeps bind user logged in to Kerberos, so that GSSAPI bind contexts don't require a request to KDC for each search.
+ * Login is performed again in background before expiry of the ticket-granting ticket.
+ */
+public class Krb5SubjectCache {
+
+  private static final Logger LOG = Loggers.get(Krb5SubjectCache.class);
+
+  /**
+   * Part of ticket lifetime after which login is performed again.
+   */
+  private static final double RENEWAL_RATIO = 0.8;
+
+  private final String principal;
+  private final String credentials;
+  private final Configuration configuration;
+  // Held while logging in, so that callers without valid Subject wait for a single login, whereas others don't wait
+  private final Object loginLock = new Object();
+  private Subject subject;
+  private long expireAt;
+  private boolean closed;
+  private ScheduledExecutorService renewer;
+  private ScheduledFuture<?> renewal;
+
+  /**
+   * @param configuration JAAS configuration used for login, instead of the JVM-wide one
+   */
+  public Krb5SubjectCache(String principal, String credentials, Configuration configuration) {
+    this.principal = principal;
+    this.credentials = credentials;
+    this.configuration = configuration;
+  }
+
+  /**
+   * @return Subject of bind user, logging in only if there is no valid ticket-granting ticket.
+   * Renewal in background doesn't block callers, as long as current ticket is still valid.
+   * @throws LoginException if unable to login
+   */
+  public Subject getSubject() throws LoginException {
+    Subject valid = getValidSubject();
+    if (valid != null) {
+      return valid;
+    }
+    synchronized (loginLock) {
+      // Another caller might have logged in meanwhile
+      valid = getValidSubject();
+      return valid != null ? valid : login();
+    }
+  }
+
+  @CheckForNull
+  private synchronized Subject getValidSubject() {
+    return subject != null && System.currentTimeMillis() < expireAt ? subject : null;
+  }
+
+  /**
+   * Forgets the Subject, for example after failure of authentication on LDAP server, so that next call logs in again.
+   */
+  public synchronized void invalidate() {
+    subject = null;
+    cancelRenewal();
+  }
+
+  public synchronized void close() {
+    closed = true;
+    invalidate();
+    if (renewer != null) {
+      renewer.shutdownNow();
+      renewer = null;
+    }
+  }
+
+  /**
+   * Performs request to KDC without holding lock of this object, and only then replaces the Subject.
+   */
+  private Subject login() throws LoginException {
+    LoginContext lc = new LoginContext(LdapContextFactory.class.getName(), null, new CallbackHandlerImpl(principal, credentials), configuration);
+    lc.login();
+    Subject loggedIn = lc.getSubject();
+    KerberosTicket tgt = getTicketGrantingTicket(loggedIn);
+    synchronized (this) {
+      subject = loggedIn;
+      scheduleRenewal(tgt);
+    }
+    return loggedIn;
+  }
+
+  private void scheduleRenewal(@CheckForNull KerberosTicket tgt) {
+    cancelRenewal();
+    if (tgt == null || tgt.getEndTime() == null) {
+      // Lifetime is unknown, so Subject will not be reused
+      expireAt = 0;
+      return;
+    }
+    expireAt = tgt.getEndTime().getTime();
+    if (closed) {
+      return;
+    }
+    Date startTime = tgt.getStartTime() != null ? tgt.getStartTime() : tgt.getAuthTime();
+    long start = startTime != null ? startTime.getTime() : System.currentTimeMillis();
+    long renewAt = start + (long) ((expireAt - start) * RENEWAL_RATIO);
+    if (renewer == null) {
+      renewer = Executors.newSingleThreadScheduledExecutor(new LdapThreadFactory("krb5-renewal"));
+    }
+    long delay = Math.max(0, renewAt - System.currentTimeMillis());
+    LOG.debug("Kerberos ticket of {} will be renewed in {} ms", principal, delay);
+    renewal = renewer.schedule(this::renew, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void renew() {
+    synchronized (loginLock) {
+      try {
+        login();
+      } catch (LoginException e) {
+        // Current ticket is used until it expires, and next call of getSubject will then try again
+        LOG.warn("Unable to renew Kerberos ticket of " + principal, e);
+      }
+    }
+  }
+
+  private void cancelRenewal() {
+    if (renewal != null) {
+      renewal.cancel(false);
+      renewal = null;
+    }
+  }
+
+  @CheckForNull
+  private static KerberosTicket getTicketGrantingTicket(Subject subject) {
+    for (KerberosTicket ticket : subject.getPrivateCredentials(KerberosTicket.class)) {
+      if (ticket.getServer().getName().startsWith("krbtgt/")) {
+        return ticket;
+      }
+    }
+    return null;
+  }
+
+}
@@ -19,13 +19,19 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.naming.NamingException;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchResult;
-import javax.security.auth.login.Configuration;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
+import javax.servlet.http.HttpServletRequest;
 import org.apache.commons.lang.StringUtils;
 import org.sonar.api.security.Authenticator;
 import org.sonar.api.utils.log.Logger;
@@ -39,32 +45,73 @@ public class LdapAuthenticator extends Authenticator {
   private static final Logger LOG = Loggers.get(LdapAuthenticator.class);
   private final Map<String, LdapContextFactory> contextFactories;
   private final Map<String, LdapUserMapping> userMappings;
+  private final LdapServerSelector serverSelector;
+  private final ExecutorService lookupExecutor;
+  private final LdapUserLookup userLookup;
 
   public LdapAuthenticator(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings) {
+    this(contextFactories, userMappings, new LdapServerSelector(contextFactories), new LdapUserLookup(contextFactories, userMappings), null);
+  }
+
+  /**
+   * @param lookupExecutor if not null, user is searched on all servers concurrently using this executor
+   */
+  public LdapAuthenticator(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, LdapServerSelector serverSelector,
+    LdapUserLookup userLookup, @Nullable ExecutorService lookupExecutor) {
     this.contextFactories = contextFactories;
     this.userMappings = userMappings;
+    this.serverSelector = serverSelector;
+    this.userLookup = userLookup;
+    this.lookupExecutor = lookupExecutor;
   }
 
   @Override
   public boolean doAuthenticate(Context context) {
-    return authenticate(context.getUsername(), context.getPassword());
+    return authenticate(context.getUsername(), context.getPassword(), context.getRequest());
   }
 
   /**
    * Authenticate the user against LDAP servers until first success.
+   * When lookup executor is provided, user is searched on all servers concurrently, but servers are still
+   * tried in configured order, and remaining searches are cancelled after first success.
    * @param login The login to use.
    * @param password The password to use.
    * @return false if specified user cannot be authenticated with specified password on any LDAP server
    */
   public boolean authenticate(String login, String password) {
-    for (String ldapKey : userMappings.keySet()) {
+    return authenticate(login, password, null);
+  }
+
+  /**
+   * @param request current HTTP request, used to share user entries with providers, or null
+   * @see #authenticate(String, String)
+   */
+  public boolean authenticate(String login, String password, @Nullable HttpServletRequest request) {
+    List<String> serverKeys = serverSelector.select(login, userMappings.keySet());
+    Map<String, Future<SearchResult>> lookups = submitLookups(serverKeys, login, request);
+    try {
+      return authenticate(serverKeys, lookups, login, password, request);
+    } finally {
+      // Lookups not started yet are dropped, but running ones are not interrupted, as interrupting I/O of JNDI
+      // would fail them mid-operation
+      for (Future<SearchResult> lookup : lookups.values()) {
+        lookup.cancel(false);
+      }
+    }
+  }
+
+  private boolean authenticate(List<String> serverKeys, Map<String, Future<SearchResult>> lookups, String login, String password,
+    @Nullable HttpServletRequest request) {
+    for (String ldapKey : serverKeys) {
       final String principal;
+      boolean kept = false;
       if (contextFactories.get(ldapKey).isSasl()) {
         principal = login;
       } else {
+        kept = userLookup.isKept(ldapKey, login);
         final SearchResult result;
         try {
-          result = userMappings.get(ldapKey).createSearch(contextFactories.get(ldapKey), login).findUnique();
+          result = findUser(lookups, ldapKey, login, request);
         } catch (NamingException e) {
           LOG.debug("User {} not found in server {}: {}", login, ldapKey, e.getMessage());
           continue;
@@ -75,43 +122,118 @@ public class LdapAuthenticator extends Authenticator {
         }
         principal = result.getNameInNamespace();
       }
-      boolean passwordValid;
-      if (contextFactories.get(ldapKey).isGssapi()) {
-        passwordValid = checkPasswordUsingGssapi(principal, password, ldapKey);
-      } else {
-        passwordValid = checkPasswordUsingBind(principal, password, ldapKey);
+      boolean passwordValid = checkPassword(principal, password, ldapKey);
+      if (!passwordValid && kept) {
+        // DN kept across requests might be outdated, for example if user was renamed or moved
+        passwordValid = checkPasswordOfRefreshedUser(principal, password, ldapKey, login, request);
       }
       if (passwordValid) {
+        serverSelector.resolved(login, ldapKey);
         return true;
       }
+      // Cached DN might be outdated
+      userLookup.invalidate(ldapKey, login);
     }
     LOG.debug("User {} not found", login);
     return false;
   }
 
+  private boolean checkPassword(String principal, String password, String ldapKey) {
+    if (contextFactories.get(ldapKey).isGssapi()) {
+      return checkPasswordUsingGssapi(principal, password, ldapKey);
+    }
+    return checkPasswordUsingBind(principal, password, ldapKey);
+  }
+
+  /**
+   * Searches user again without cache, and checks password again only if DN changed.
+   */
+  private boolean checkPasswordOfRefreshedUser(String principal, String password, String ldapKey, String login, @Nullable HttpServletRequest request) {
+    userLookup.invalidate(ldapKey, login);
+    String[] attributes = getUserAttributes(ldapKey, request);
+    SearchResult result;
+    try {
+      result = userLookup.search(ldapKey, login, attributes);
+    } catch (NamingException e) {
+      LOG.debug("User {} not found in server {}: {}", login, ldapKey, e.getMessage());
+      return false;
+    }
+    userLookup.cache(request, ldapKey, login, attributes, result);
+    if (result == null || principal.equals(result.getNameInNamespace())) {
+      return false;
+    }
+    LOG.debug("DN of user {} changed in server {}: {}", login, ldapKey, result.getNameInNamespace());
+    return checkPassword(result.getNameInNamespace(), password, ldapKey);
+  }
+
+  private Map<String, Future<SearchResult>> submitLookups(List<String> serverKeys, String login, @Nullable HttpServletRequest request) {
+    Map<String, Future<SearchResult>> lookups = new LinkedHashMap<>();
+    if (lookupExecutor != null && serverKeys.size() > 1) {
+      for (String ldapKey : serverKeys) {
+        String[] attributes = getUserAttributes(ldapKey, request);
+        // Servers which don't know the login are only searched if needed, once others were
+        if (!contextFactories.get(ldapKey).isSasl() && serverSelector.mightContain(ldapKey, login) && !userLookup.isCached(request, ldapKey, login, attributes)) {
+          lookups.put(ldapKey, lookupExecutor.submit(() -> userLookup.search(ldapKey, login, attributes)));
+        }
+      }
+    }
+    return lookups;
+  }
+
+  @CheckForNull
+  private SearchResult findUser(Map<String, Future<SearchResult>> lookups, String ldapKey, String login, @Nullable HttpServletRequest request)
+    throws NamingException {
+    if (!lookups.containsKey(ldapKey)) {
+      return userLookup.find(request, ldapKey, login, getUserAttributes(ldapKey, request));
+    }
+    // Request is not shared with lookup threads, so that result is shared from this one
+    SearchResult result = await(lookups.get(ldapKey));
+    userLookup.cache(request, ldapKey, login, getUserAttributes(ldapKey, request), result);
+    return result;
+  }
+
+  /**
+   * Only DN is needed for authentication, but when entry is shared with providers, it also contains attributes needed by them.
+   */
+  private String[] getUserAttributes(String ldapKey, @Nullable HttpServletRequest request) {
+    return request == null ? ContextHelper.NO_ATTRIBUTES : userLookup.getUserAttributes(ldapKey);
+  }
+
+  @CheckForNull
+  private static SearchResult await(Future<SearchResult> lookup) throws NamingException {
+    try {
+      return lookup.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof NamingException) {
+        throw (NamingException) e.getCause();
+      }
+      throw new LdapException("Unable to search user", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      NamingException namingException = new NamingException("Interrupted while searching user");
+      namingException.initCause(e);
+      throw namingException;
+    }
+  }
+
   private boolean checkPasswordUsingBind(String principal, String password, String ldapKey) {
     if (StringUtils.isEmpty(password)) {
       LOG.debug("Password is blank.");
       return false;
     }
-    InitialDirContext context = null;
     try {
-      context = contextFactories.get(ldapKey).createUserContext(principal, password);
+      contextFactories.get(ldapKey).checkCredentials(principal, password);
       return true;
     } catch (NamingException e) {
       LOG.debug("Password not valid for user {} in server {}: {}", principal, ldapKey, e.getMessage());
       return false;
-    } finally {
-      ContextHelper.closeQuietly(context);
     }
   }
 
   private boolean checkPasswordUsingGssapi(String principal, String password, String ldapKey) {
-    // Use our custom configuration to avoid reliance on external config
-    Configuration.setConfiguration(new Krb5LoginConfiguration());
     LoginContext lc;
     try {
-      lc = new LoginContext(getClass().getName(), new CallbackHandlerImpl(principal, password));
+      lc = contextFactories.get(ldapKey).createKrb5LoginContext(principal, password);
       lc.login();
     } catch (LoginException e) {
       // Bad username: Client not found in Kerberos database
@@ -24,14 +24,14 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
+import javax.annotation.Nullable;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.sonar.api.server.ServerSide;
 import org.sonar.api.utils.log.Logger;
@@ -90,8 +90,19 @@ public class LdapAutodiscovery {
    * @return LDAP server(s) or empty if unable to determine
    */
   public List<LdapSrvRecord> getLdapServers(String domain) {
+    return getLdapServers(domain, null);
+  }
+
+  /**
+   * Get LDAP server(s) of an Active Directory site from DNS, so that servers close to SonarQube are used.
+   *
+   * @param domain DNS domain
+   * @param site Active Directory site, or null for all servers of the domain
+   * @return LDAP server(s) of the site, or of the domain if none found for the site, or empty if unable to determine
+   */
+  public List<LdapSrvRecord> getLdapServers(String domain, @Nullable String site) {
     try {
-      return getLdapServers(new InitialDirContext(), domain);
+      return getLdapServers(new InitialDirContext(), domain, site);
     } catch (NamingException e) {
       LOG.error("Unable to determine LDAP server(s) from DNS", e);
       return Collections.emptyList();
@@ -99,10 +110,33 @@ public class LdapAutodiscovery {
   }
 
   List<LdapSrvRecord> getLdapServers(DirContext context, String domain) throws NamingException {
-    Attributes lSrvAttrs = context.getAttributes("dns:/_ldap._tcp." + domain, new String[] {"srv"});
+    return getLdapServers(context, domain, null);
+  }
+
+  List<LdapSrvRecord> getLdapServers(DirContext context, String domain, @Nullable String site) throws NamingException {
+    if (StringUtils.isNotBlank(site)) {
+      try {
+        List<LdapSrvRecord> result = getSrvRecords(context, "_ldap._tcp." + site + "._sites." + domain);
+        if (!result.isEmpty()) {
+          return result;
+        }
+      } catch (NamingException e) {
+        LOG.debug("Unable to determine LDAP server(s) of site {}: {}", site, e.getMessage());
+      }
+      LOG.warn("No LDAP server found for site {}, using all servers of domain {}", site, domain);
+    }
+    return getSrvRecords(context, "_ldap._tcp." + domain);
+  }
+
+  private static List<LdapSrvRecord> getSrvRecords(DirContext context, String srvName) throws NamingException {
+    Attributes lSrvAttrs = context.getAttributes("dns:/" + srvName, new String[] {"srv"});
     Attribute serversAttribute = lSrvAttrs.get("srv");
+    if (serversAttribute == null) {
+      return Collections.emptyList();
+    }
     NamingEnumeration<?> lEnum = serversAttribute.getAll();
-    SortedSet<LdapSrvRecord> result = new TreeSet<>();
+    // Not a sorted set, as records of the same priority and weight, such as all domain controllers, are not equal
+    List<LdapSrvRecord> result = new ArrayList<>();
     while (lEnum.hasMore()) {
       String srvRecord = (String) lEnum.next();
       // priority weight port target
@@ -117,9 +151,13 @@ public class LdapAutodiscovery {
         target = target.substring(0, target.length() - 1);
       }
       String server = "ldap://" + target + ":" + port;
-      result.add(new LdapSrvRecord(server, priority, weight));
+      LdapSrvRecord record = new LdapSrvRecord(server, priority, weight);
+      if (!result.contains(record)) {
+        result.add(record);
+      }
     }
-    return new ArrayList<>(result);
+    Collections.sort(result);
+    return result;
   }
 
   public static class LdapSrvRecord implements Comparable<LdapSrvRecord> {
@@ -136,6 +174,9 @@ public class LdapAutodiscovery {
     @Override
     public int compareTo(LdapSrvRecord o) {
       if (this.priority == o.priority) {
+        if (this.weight == o.weight) {
+          return this.serverUrl.compareTo(o.serverUrl);
+        }
         return Integer.valueOf(o.weight).compareTo(this.weight);
       }
       return Integer.valueOf(this.priority).compareTo(o.priority);
@@ -145,6 +186,19 @@ public class LdapAutodiscovery {
       return serverUrl;
     }
 
+    public int getPriority() {
+      return priority;
+    }
+
+    public int getWeight() {
+      return weight;
+    }
+
+    @Override
+    public String toString() {
+      return serverUrl + " (priority=" + priority + ", weight=" + weight + ")";
+    }
+
     @Override
     public boolean equals(Object obj) {
       if (!(obj instanceof LdapSrvRecord)) {
@@ -0,0 +1,136 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * Compact set of logins, which can tell that a login is definitely not present, or that it might be present.
+ * Logins are compared case-insensitively, as LDAP attributes usually are.
+ * Filter is filled before being published, and is then only read, so that it can be shared between threads.
+ */
+public class LdapBloomFilter {
+
+  private final BitSet bits;
+  private final int bitSize;
+  private final int hashFunctions;
+  private int insertions;
+
+  /**
+   * @param expectedInsertions number of logins, which will be put in the filter
+   * @param falsePositiveRate targeted probability that {@link #mightContain(String)} returns true for an absent login
+   * @param maxBitSize maximum number of bits, which bounds memory footprint at the expense of false positive rate
+   */
+  public LdapBloomFilter(int expectedInsertions, double falsePositiveRate, long maxBitSize) {
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException("False positive rate must be between 0 and 1 exclusive: " + falsePositiveRate);
+    }
+    int n = Math.max(1, expectedInsertions);
+    double optimalBitSize = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+    this.bitSize = (int) Math.max(Long.SIZE, Math.min(Math.min(maxBitSize, Integer.MAX_VALUE), Math.ceil(optimalBitSize)));
+    this.hashFunctions = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+    this.bits = new BitSet(bitSize);
+  }
+
+  public void put(String login) {
+    long hash = hash(login);
+    int hash1 = (int) hash;
+    int hash2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashFunctions; i++) {
+      bits.set(index(hash1 + i * hash2));
+    }
+    insertions++;
+  }
+
+  /**
+   * @return false if login was definitely not put in the filter
+   */
+  public boolean mightContain(String login) {
+    long hash = hash(login);
+    int hash1 = (int) hash;
+    int hash2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashFunctions; i++) {
+      if (!bits.get(index(hash1 + i * hash2))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int getBitSize() {
+    return bitSize;
+  }
+
+  /**
+   * @return memory footprint of bits in bytes
+   */
+  public long getByteSize() {
+    return (bitSize + 7L) / 8;
+  }
+
+  public int getHashFunctions() {
+    return hashFunctions;
+  }
+
+  public int getInsertionCount() {
+    return insertions;
+  }
+
+  /**
+   * @return probability that {@link #mightContain(String)} returns true for an absent login, given the number of logins put in the filter
+   */
+  public double getExpectedFalsePositiveRate() {
+    return Math.pow(1 - Math.exp(-(double) hashFunctions * insertions / bitSize), hashFunctions);
+  }
+
+  private int index(int combinedHash) {
+    return (combinedHash & Integer.MAX_VALUE) % bitSize;
+  }
+
+  /**
+   * 64-bit FNV-1a, followed by the finalizer of MurmurHash3 to spread bits over both halves.
+   */
+  private static long hash(String login) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : login.toLowerCase(Locale.ENGLISH).getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" +
+      "logins=" + insertions +
+      ", bytes=" + getByteSize() +
+      ", hashFunctions=" + hashFunctions +
+      ", falsePositiveRate=" + String.format(Locale.ENGLISH, "%.4f", getExpectedFalsePositiveRate()) +
+      "}";
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+
+/**
+ * Bounded thread-safe cache, which evicts least recently used entries, and optionally expires entries after a time to live.
+ */
+public class LdapCache<K, V> {
+
+  private final long timeToLive;
+  private final Map<K, Entry<V>> entries;
+  private long hits;
+  private long misses;
+
+  /**
+   * @param maxSize maximum number of entries
+   * @param timeToLive in milliseconds, or 0 if entries never expire
+   */
+  public LdapCache(int maxSize, long timeToLive) {
+    this.timeToLive = timeToLive;
+    this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @return value, or null if absent or expired
+   */
+  @CheckForNull
+  public synchronized V get(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry != null && isExpired(entry)) {
+      entries.remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.value;
+  }
+
+  /**
+   * @return whether value is present and not expired, which is not counted as a hit or a miss
+   */
+  public synchronized boolean contains(K key) {
+    Entry<V> entry = entries.get(key);
+    return entry != null && !isExpired(entry);
+  }
+
+  public synchronized void put(K key, V value) {
+    entries.put(key, new Entry<>(value));
+  }
+
+  public synchronized void remove(K key) {
+    entries.remove(key);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  private boolean isExpired(Entry<V> entry) {
+    return timeToLive > 0 && System.currentTimeMillis() - entry.createdAt > timeToLive;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return getClass().getSimpleName() + "{" +
+      "size=" + entries.size() +
+      ", hits=" + hits +
+      ", misses=" + misses +
+      "}";
+  }
+
+  private static final class Entry<V> {
+    private final V value;
+    private final long createdAt;
+
+    Entry(V value) {
+      this.value = value;
+      this.createdAt = System.currentTimeMillis();
+    }
+  }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Circuit breaker of a single LDAP server.
+ * <p>
+ * Breaker opens after {@code <prefix>.circuitBreaker.failureThreshold} consecutive connection failures, and then rejects
+ * requests during {@code <prefix>.circuitBreaker.openDuration} milliseconds. After that a single trial request is allowed
+ * (half-open state): breaker closes if it succeeds, and opens again if it fails.
+ * Breaker is disabled when threshold is 0, which is the default.
+ */
+public class LdapCircuitBreaker {
+
+  private static final Logger LOG = Loggers.get(LdapCircuitBreaker.class);
+
+  private static final long DEFAULT_OPEN_DURATION = 30_000L;
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String name;
+  private final int failureThreshold;
+  private final long openDuration;
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedAt;
+
+  public LdapCircuitBreaker(Settings settings, String settingsPrefix) {
+    this(settingsPrefix, settings.getInt(settingsPrefix + ".circuitBreaker.failureThreshold"),
+      settings.hasKey(settingsPrefix + ".circuitBreaker.openDuration") ? settings.getLong(settingsPrefix + ".circuitBreaker.openDuration") : DEFAULT_OPEN_DURATION);
+  }
+
+  /**
+   * @param failureThreshold number of consecutive failures which opens breaker, or 0 to disable it
+   * @param openDuration in milliseconds during which requests are rejected
+   */
+  LdapCircuitBreaker(String name, int failureThreshold, long openDuration) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.openDuration = openDuration;
+  }
+
+  /**
+   * @return false if requests should not be sent to the server, true otherwise.
+   * When breaker is open and open duration elapsed, returns true for a single trial request.
+   */
+  public synchronized boolean allowRequest() {
+    if (isOpen()) {
+      return false;
+    }
+    if (state != State.CLOSED) {
+      // Trial is allowed again after open duration, in case previous one was never reported
+      state = State.HALF_OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+    return true;
+  }
+
+  /**
+   * @return true if requests are rejected at the moment. Unlike {@link #allowRequest()}, doesn't start a trial.
+   */
+  public synchronized boolean isOpen() {
+    return state != State.CLOSED && System.currentTimeMillis() - openedAt < openDuration;
+  }
+
+  /**
+   * Gives back trial granted by {@link #allowRequest()}, when request was finally not sent to the server,
+   * so that next request becomes the trial instead of waiting for another open duration.
+   */
+  public synchronized void cancelTrial() {
+    if (state == State.HALF_OPEN) {
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis() - openDuration;
+    }
+  }
+
+  public synchronized void recordSuccess() {
+    if (state != State.CLOSED) {
+      LOG.info("Circuit breaker of LDAP server {} is closed", name);
+    }
+    state = State.CLOSED;
+    failures = 0;
+  }
+
+  /**
+   * Records failed request. Only failures to reach the server are taken into account, not those reported by the server,
+   * such as invalid credentials.
+   */
+  public synchronized void recordFailure(NamingException e) {
+    if (failureThreshold <= 0 || !isConnectionFailure(e)) {
+      return;
+    }
+    failures++;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+      LOG.warn("Circuit breaker of LDAP server {} is open for {} ms after {} failures: {}", name, openDuration, failures, e.getMessage());
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  static boolean isConnectionFailure(NamingException e) {
+    if (isLocalFailure(e)) {
+      return false;
+    }
+    // Read timeout is reported by JNDI as plain NamingException
+    return e instanceof CommunicationException
+      || (e.getMessage() != null && e.getMessage().contains("timed out"));
+  }
+
+  /**
+   * @return whether failure happened in this process, such as an exhausted connection pool or an interrupted thread,
+   * so that it tells nothing about the server
+   */
+  static boolean isLocalFailure(NamingException e) {
+    return e instanceof LdapPoolExhaustedException || e instanceof InterruptedNamingException;
+  }
+
+}
@@ -0,0 +1,349 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.ldap.InitialLdapContext;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Pool of contexts bound as the configured bind user of a single LDAP server.
+ * Used instead of the JVM-wide JNDI connection pool when property {@code <prefix>.pool.enabled} is set,
+ * so that each server can be sized, validated and evicted independently.
+ * <p>
+ * Idle connection is validated when borrowed, by reading the root DSE, only if it was idle for longer than
+ * {@code <prefix>.pool.validateAfterIdleTime} milliseconds (30 seconds by default), so that connections in steady use
+ * don't pay an additional round trip for each search. Validation can be disabled with {@code <prefix>.pool.validateOnBorrow}.
+ */
+public class LdapConnectionPool {
+
+  private static final Logger LOG = Loggers.get(LdapConnectionPool.class);
+
+  private static final int DEFAULT_MIN_SIZE = 0;
+  private static final int DEFAULT_MAX_SIZE = 8;
+  private static final long DEFAULT_MAX_WAIT = 5_000L;
+  private static final long DEFAULT_MAX_IDLE_TIME = 300_000L;
+  private static final long DEFAULT_MAX_LIFETIME = 1_800_000L;
+  private static final long DEFAULT_VALIDATE_AFTER_IDLE_TIME = 30_000L;
+
+  /**
+   * Opens a new context, which is bound as the bind user.
+   */
+  interface Connector {
+    InitialLdapContext connect() throws NamingException;
+  }
+
+  private final String name;
+  private final Connector connector;
+  private final int minSize;
+  private final int initialSize;
+  private final int maxSize;
+  private final long maxWait;
+  private final long maxIdleTime;
+  private final long maxLifetime;
+  private final boolean validateOnBorrow;
+  private final long validateAfterIdleTime;
+  private final Semaphore permits;
+  // Most recently used connections are kept at the head, so that idle ones can be evicted from the tail
+  private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+  private volatile boolean closed;
+
+  public LdapConnectionPool(Settings settings, String settingsPrefix, Connector connector) {
+    this.name = settingsPrefix;
+    this.connector = connector;
+    this.minSize = getInt(settings, settingsPrefix + ".pool.minSize", DEFAULT_MIN_SIZE);
+    this.maxSize = Math.max(1, getInt(settings, settingsPrefix + ".pool.maxSize", DEFAULT_MAX_SIZE));
+    this.initialSize = Math.min(maxSize, getInt(settings, settingsPrefix + ".pool.initialSize", minSize));
+    this.maxWait = getLong(settings, settingsPrefix + ".pool.maxWait", DEFAULT_MAX_WAIT);
+    this.maxIdleTime = getLong(settings, settingsPrefix + ".pool.maxIdleTime", DEFAULT_MAX_IDLE_TIME);
+    this.maxLifetime = getLong(settings, settingsPrefix + ".pool.maxLifetime", DEFAULT_MAX_LIFETIME);
+    this.validateOnBorrow = !settings.hasKey(settingsPrefix + ".pool.validateOnBorrow") || settings.getBoolean(settingsPrefix + ".pool.validateOnBorrow");
+    this.validateAfterIdleTime = getLong(settings, settingsPrefix + ".pool.validateAfterIdleTime", DEFAULT_VALIDATE_AFTER_IDLE_TIME);
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * Returns a context from the pool, opening a new one if none is idle.
+   * The connection goes back to the pool when the returned context is closed.
+   *
+   * @throws NamingException if unable to open connection, or if pool is exhausted for longer than {@code <prefix>.pool.maxWait}
+   */
+  public InitialDirContext borrow() throws NamingException {
+    return new PooledDirContext(acquire());
+  }
+
+  /**
+   * Opens and binds {@code <prefix>.pool.initialSize} connections in advance,
+   * so that first requests after startup don't pay for connection setup.
+   *
+   * @throws NamingException if unable to open connection
+   */
+  public void warmUp() throws NamingException {
+    List<InitialDirContext> contexts = new ArrayList<>();
+    try {
+      for (int i = 0; i < initialSize; i++) {
+        contexts.add(borrow());
+      }
+    } finally {
+      for (InitialDirContext context : contexts) {
+        context.close();
+      }
+    }
+  }
+
+  /**
+   * Binds as specified user on a pooled connection in order to check its credentials.
+   * Connection is then bound back as the bind user before being returned to the pool, also when credentials are not valid,
+   * so that it never stays in the pool bound as another user. It is discarded only if this fails,
+   * or if server couldn't be reached.
+   *
+   * @throws NamingException if credentials are not valid, or if unable to open connection
+   */
+  public void bind(@Nullable String principal, @Nullable String credentials) throws NamingException {
+    PooledConnection connection = acquire();
+    boolean reusable = false;
+    try {
+      InitialLdapContext context = connection.context;
+      Hashtable<?, ?> env = context.getEnvironment();
+      Object bindPrincipal = env.get(Context.SECURITY_PRINCIPAL);
+      Object bindCredentials = env.get(Context.SECURITY_CREDENTIALS);
+      NamingException failure = null;
+      try {
+        reconnect(context, principal, credentials);
+      } catch (NamingException e) {
+        failure = e;
+      }
+      if (failure == null || !(LdapCircuitBreaker.isConnectionFailure(failure) || LdapCircuitBreaker.isLocalFailure(failure))) {
+        reusable = rebind(context, bindPrincipal, bindCredentials);
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    } finally {
+      release(connection, reusable);
+    }
+  }
+
+  private static boolean rebind(InitialLdapContext context, @Nullable Object bindPrincipal, @Nullable Object bindCredentials) {
+    try {
+      reconnect(context, bindPrincipal, bindCredentials);
+      return true;
+    } catch (NamingException e) {
+      LOG.debug("Unable to bind pooled LDAP connection back as bind user: {}", e.getMessage());
+      return false;
+    }
+  }
+
+  private static void reconnect(InitialLdapContext context, @Nullable Object principal, @Nullable Object credentials) throws NamingException {
+    setEnvironment(context, Context.SECURITY_PRINCIPAL, principal);
+    setEnvironment(context, Context.SECURITY_CREDENTIALS, credentials);
+    // Performs "bind" operation on the same connection
+    context.reconnect(null);
+  }
+
+  private static void setEnvironment(InitialLdapContext context, String property, @Nullable Object value) throws NamingException {
+    if (value == null) {
+      context.removeFromEnvironment(property);
+    } else {
+      context.addToEnvironment(property, value);
+    }
+  }
+
+  private PooledConnection acquire() throws NamingException {
+    acquirePermit();
+    try {
+      PooledConnection connection;
+      while ((connection = idle.pollFirst()) != null) {
+        long now = System.currentTimeMillis();
+        if (isExpired(connection, now)) {
+          destroy(connection);
+        } else if (validateOnBorrow && now - connection.lastUsedAt > validateAfterIdleTime && !isValid(connection)) {
+          LOG.debug("Discarding stale LDAP connection from pool {}", name);
+          destroy(connection);
+        } else {
+          return connection;
+        }
+      }
+      LOG.debug("Opening new LDAP connection for pool {}", name);
+      return new PooledConnection(connector.connect());
+    } catch (NamingException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private void acquirePermit() throws NamingException {
+    try {
+      if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+        throw new LdapPoolExhaustedException("Timeout waiting for an LDAP connection from pool " + name);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedNamingException("Interrupted while waiting for an LDAP connection from pool " + name);
+    }
+  }
+
+  private void release(PooledConnection connection, boolean reusable) {
+    try {
+      long now = System.currentTimeMillis();
+      if (closed || !reusable || isExpired(connection, now) || idle.size() >= maxSize) {
+        destroy(connection);
+      } else {
+        connection.lastUsedAt = now;
+        idle.offerFirst(connection);
+      }
+      evictIdle();
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Closes connections, which exceeded {@code <prefix>.pool.maxIdleTime} or {@code <prefix>.pool.maxLifetime},
+   * while keeping at least {@code <prefix>.pool.minSize} idle connections.
+   */
+  public void evictIdle() {
+    long now = System.currentTimeMillis();
+    Iterator<PooledConnection> it = idle.descendingIterator();
+    while (it.hasNext() && idle.size() > minSize) {
+      PooledConnection connection = it.next();
+      boolean evictable = now - connection.lastUsedAt > maxIdleTime || isExpired(connection, now);
+      if (evictable && idle.removeFirstOccurrence(connection)) {
+        LOG.debug("Evicting idle LDAP connection from pool {}", name);
+        destroy(connection);
+      }
+    }
+  }
+
+  /**
+   * Closes all idle connections. Connections in use are closed once returned.
+   */
+  public void close() {
+    closed = true;
+    PooledConnection connection;
+    while ((connection = idle.pollFirst()) != null) {
+      destroy(connection);
+    }
+  }
+
+  private boolean isExpired(PooledConnection connection, long now) {
+    return now - connection.createdAt > maxLifetime;
+  }
+
+  private static boolean isValid(PooledConnection connection) {
+    try {
+      connection.context.getAttributes("", ContextHelper.NO_ATTRIBUTES);
+      return true;
+    } catch (CommunicationException | ServiceUnavailableException e) {
+      return false;
+    } catch (NamingException e) {
+      // Server responded, so connection is alive
+      return true;
+    }
+  }
+
+  private static void destroy(PooledConnection connection) {
+    ContextHelper.closeQuietly(connection.context);
+  }
+
+  public int getIdleCount() {
+    return idle.size();
+  }
+
+  public int getActiveCount() {
+    return maxSize - permits.availablePermits();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  private static int getInt(Settings settings, String key, int defaultValue) {
+    return settings.hasKey(key) ? settings.getInt(key) : defaultValue;
+  }
+
+  private static long getLong(Settings settings, String key, long defaultValue) {
+    return settings.hasKey(key) ? settings.getLong(key) : defaultValue;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" +
+      "name=" + name +
+      ", active=" + getActiveCount() +
+      ", idle=" + getIdleCount() +
+      ", minSize=" + minSize +
+      ", maxSize=" + maxSize +
+      "}";
+  }
+
+  private static final class PooledConnection {
+    private final InitialLdapContext context;
+    private final long createdAt;
+    private long lastUsedAt;
+
+    PooledConnection(InitialLdapContext context) {
+      this.context = context;
+      this.createdAt = System.currentTimeMillis();
+      this.lastUsedAt = createdAt;
+    }
+  }
+
+  /**
+   * Delegates all operations to the pooled context, but returns it to the pool instead of closing it.
+   */
+  private final class PooledDirContext extends InitialDirContext {
+    private PooledConnection connection;
+
+    PooledDirContext(PooledConnection connection) throws NamingException {
+      super(true);
+      this.connection = connection;
+      this.defaultInitCtx = connection.context;
+      this.gotDefault = true;
+    }
+
+    @Override
+    public void close() {
+      if (connection != null) {
+        PooledConnection released = connection;
+        connection = null;
+        defaultInitCtx = null;
+        // Operation of an interrupted thread might have been left unfinished on the connection
+        release(released, !Thread.currentThread().isInterrupted());
+      }
+    }
+  }
+
+}
@@ -22,12 +22,35 @@ package org.sonar.plugins.ldap;
 import java.io.IOException;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
+import javax.naming.AuthenticationException;
 import javax.naming.Context;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.InitialDirContext;
 import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.StartTlsRequest;
 import javax.naming.ldap.StartTlsResponse;
 import javax.security.auth.Subject;
@@ -38,6 +61,7 @@ import org.apache.commons.lang.StringUtils;
 import org.sonar.api.config.Settings;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
+import org.sonar.plugins.ldap.LdapAutodiscovery.LdapSrvRecord;
 
 /**
  * @author Evgeny Mandrikov
@@ -66,6 +90,24 @@ public class LdapContextFactory {
 
   private static final String SASL_REALM_PROPERTY = "java.naming.security.sasl.realm";
 
+  private static final String SUN_CONNECT_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.connect.timeout";
+  private static final String SUN_READ_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.read.timeout";
+
+  /**
+   * Adaptive read timeout is a multiple of the 99th percentile of observed latencies, but never less than minimum.
+   */
+  private static final int ADAPTIVE_READ_TIMEOUT_MULTIPLIER = 4;
+  private static final long ADAPTIVE_READ_TIMEOUT_MIN = 1_000L;
+  private static final int ADAPTIVE_READ_TIMEOUT_MIN_SAMPLES = 20;
+
+  /**
+   * Minimum number of latencies observed before searches are hedged, so that their 95th percentile is meaningful.
+   */
+  private static final int HEDGE_MIN_SAMPLES = 20;
+  private static final int DEFAULT_HEDGE_THREADS = 4;
+
+  private static final String LOAD_BALANCING_POWER_OF_TWO_CHOICES = "powerOfTwoChoices";
+
   private final String providerUrl;
   private final boolean startTLS;
   private final String authentication;
@@ -74,53 +116,390 @@ public class LdapContextFactory {
   private final String password;
   private final String realm;
   private final String referral;
+  private final long connectTimeout;
+  private final long readTimeout;
+  private final boolean adaptiveReadTimeout;
+  private final LdapLatencyRecorder latencies = new LdapLatencyRecorder();
+  private final LdapConnectionPool connectionPool;
+  private final boolean verifyCredentialsUsingPool;
+  // Private instance, so that JVM-wide JAAS configuration is neither modified nor required
+  private final Configuration krb5Configuration = new Krb5LoginConfiguration();
+  private final Krb5SubjectCache krb5SubjectCache;
+  // Environments are computed once, so that only principal and credentials are added for each new context
+  private final Map<String, Object> connectionEnvironment;
+  private final Map<String, Object> bindEnvironment;
+  private final Map<String, Object> pooledBindEnvironment;
+  private volatile boolean available = true;
+  private final LdapCircuitBreaker circuitBreaker;
+  private final LdapHealthProber healthProber;
+  private final Settings settings;
+  private final String settingsPrefix;
+  private volatile List<LdapContextFactory> replicas;
+  private final boolean powerOfTwoChoices;
+  // Set for servers discovered from DNS
+  private volatile LdapSrvRecord srvRecord;
+  private Supplier<List<LdapSrvRecord>> srvDiscovery;
+  private long srvRefreshInterval;
+  private ScheduledExecutorService srvRefresher;
+  private volatile boolean healthCheckStarted;
+  private final LdapContextFactory hedge;
+  private final ExecutorService hedgeExecutor;
+  private final ScheduledExecutorService hedgeTimer;
 
+  /**
+   * @param ldapUrl URL of server, or space-separated URLs of its replicas
+   */
   public LdapContextFactory(Settings settings, String settingsPrefix, String ldapUrl) {
+    this(settings, settingsPrefix, splitUrls(ldapUrl));
+  }
+
+  /**
+   * When several URLs are given, they are considered as replicas of the same server, which share settings.
+   * Each request is sent to the replica with the lowest recent latency, or when property {@code <prefix>.loadBalancing}
+   * is {@code powerOfTwoChoices}, to the fastest of two randomly chosen replicas. Following replicas are tried if
+   * the chosen one can't be reached.
+   */
+  public LdapContextFactory(Settings settings, String settingsPrefix, List<String> ldapUrls) {
+    this(settings, settingsPrefix, ldapUrls, ldapUrls.size() > 1, true);
+  }
+
+  /**
+   * @param hedging false for replicas and alternate server, which don't hedge themselves
+   */
+  private LdapContextFactory(Settings settings, String settingsPrefix, List<String> ldapUrls, boolean replicated, boolean hedging) {
+    this.settings = settings;
+    this.settingsPrefix = settingsPrefix;
     this.authentication = StringUtils.defaultString(settings.getString(settingsPrefix + ".authentication"), DEFAULT_AUTHENTICATION);
     this.factory = StringUtils.defaultString(settings.getString(settingsPrefix + ".contextFactoryClass"), DEFAULT_FACTORY);
     this.realm = settings.getString(settingsPrefix + ".realm");
-    this.providerUrl = ldapUrl;
+    this.providerUrl = replicated ? StringUtils.join(ldapUrls, ' ') : ldapUrls.get(0);
     this.startTLS = settings.getBoolean(settingsPrefix + ".StartTLS");
     this.username = settings.getString(settingsPrefix + ".bindDn");
     this.password = settings.getString(settingsPrefix + ".bindPassword");
     this.referral = getReferralsMode(settings, settingsPrefix + ".followReferrals");
+    this.connectTimeout = settings.getLong(settingsPrefix + ".connectTimeout");
+    this.readTimeout = settings.getLong(settingsPrefix + ".readTimeout");
+    this.adaptiveReadTimeout = settings.getBoolean(settingsPrefix + ".adaptiveReadTimeout");
+    this.circuitBreaker = new LdapCircuitBreaker(settings, settingsPrefix);
+    this.connectionEnvironment = createConnectionEnvironment();
+    this.bindEnvironment = createBindEnvironment(false);
+    this.pooledBindEnvironment = createBindEnvironment(true);
+    LOG.debug("LDAP context environment for {}: {}", settingsPrefix, bindEnvironment);
+    this.verifyCredentialsUsingPool = settings.getBoolean(settingsPrefix + ".pool.verifyCredentials");
+    this.powerOfTwoChoices = LOAD_BALANCING_POWER_OF_TWO_CHOICES.equals(settings.getString(settingsPrefix + ".loadBalancing"));
+    long healthCheckInterval = settings.getLong(settingsPrefix + ".healthCheckInterval");
+    if (replicated) {
+      // Connections are opened by replicas
+      List<LdapContextFactory> factories = new ArrayList<>(ldapUrls.size());
+      for (String ldapUrl : ldapUrls) {
+        factories.add(createReplica(ldapUrl));
+      }
+      this.replicas = Collections.unmodifiableList(factories);
+      this.connectionPool = null;
+      this.krb5SubjectCache = null;
+      this.healthProber = null;
+    } else {
+      this.replicas = Collections.emptyList();
+      this.connectionPool = createConnectionPool(settings, settingsPrefix);
+      this.krb5SubjectCache = isGssapi() ? new Krb5SubjectCache(username, password, krb5Configuration) : null;
+      this.healthProber = healthCheckInterval > 0 ? new LdapHealthProber(this, healthCheckInterval) : null;
+    }
+    String hedgeUrl = settings.getString(settingsPrefix + ".hedgeUrl");
+    if (hedging && StringUtils.isNotBlank(hedgeUrl)) {
+      List<String> hedgeUrls = splitUrls(hedgeUrl);
+      this.hedge = new LdapContextFactory(settings, settingsPrefix, hedgeUrls, hedgeUrls.size() > 1, false);
+      int hedgeThreads = settings.hasKey(settingsPrefix + ".hedgeThreads") ? settings.getInt(settingsPrefix + ".hedgeThreads") : DEFAULT_HEDGE_THREADS;
+      // Bounded without queue, so that hedges which can't start immediately are rejected, and searches are then not hedged
+      this.hedgeExecutor = new ThreadPoolExecutor(0, hedgeThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), new LdapThreadFactory("hedge"));
+      this.hedgeTimer = Executors.newSingleThreadScheduledExecutor(new LdapThreadFactory("hedge-timer"));
+    } else {
+      this.hedge = null;
+      this.hedgeExecutor = null;
+      this.hedgeTimer = null;
+    }
+  }
+
+  private LdapContextFactory createReplica(String ldapUrl) {
+    return new LdapContextFactory(settings, settingsPrefix, Collections.singletonList(ldapUrl), false, false);
+  }
+
+  /**
+   * Creates factory for servers discovered from DNS SRV records, which are considered as replicas of the same server.
+   * Requests are sent to replicas in order of priority, and among replicas of the same priority, to a random one
+   * according to weights, as specified by RFC 2782.
+   *
+   * @param discovery used to refresh records every {@code refreshInterval} milliseconds once health checks started,
+   * or never if interval is 0
+   */
+  static LdapContextFactory forSrvRecords(Settings settings, String settingsPrefix, List<LdapSrvRecord> srvRecords,
+    Supplier<List<LdapSrvRecord>> discovery, long refreshInterval) {
+    List<String> ldapUrls = srvRecords.stream().map(LdapSrvRecord::getServerUrl).collect(Collectors.toList());
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, settingsPrefix, ldapUrls, true, true);
+    contextFactory.srvDiscovery = discovery;
+    contextFactory.srvRefreshInterval = refreshInterval;
+    contextFactory.setSrvRecords(srvRecords);
+    return contextFactory;
+  }
+
+  /**
+   * Replaces replicas by servers of specified records. Replicas which are still advertised are kept with their connections
+   * and statistics, others are closed.
+   */
+  synchronized void setSrvRecords(List<LdapSrvRecord> srvRecords) {
+    Map<String, LdapContextFactory> previous = new HashMap<>();
+    for (LdapContextFactory replica : replicas) {
+      previous.put(replica.providerUrl, replica);
+    }
+    List<LdapContextFactory> updated = new ArrayList<>(srvRecords.size());
+    for (LdapSrvRecord record : srvRecords) {
+      LdapContextFactory replica = previous.remove(record.getServerUrl());
+      if (replica == null) {
+        LOG.info("Detected server: {}", record.getServerUrl());
+        replica = createReplica(record.getServerUrl());
+        if (healthCheckStarted) {
+          replica.startHealthCheck();
+        }
+      }
+      replica.srvRecord = record;
+      updated.add(replica);
+    }
+    replicas = Collections.unmodifiableList(updated);
+    for (LdapContextFactory removed : previous.values()) {
+      LOG.info("Server {} is no longer advertised in DNS", removed.providerUrl);
+      removed.close();
+    }
+  }
+
+  /**
+   * Discovers servers again, and keeps the current ones if none is found.
+   */
+  void refreshSrvRecords() {
+    try {
+      List<LdapSrvRecord> srvRecords = srvDiscovery.get();
+      if (srvRecords.isEmpty()) {
+        LOG.warn("Unable to discover LDAP servers, keeping {}", getProviderUrl());
+      } else {
+        setSrvRecords(srvRecords);
+      }
+    } catch (RuntimeException e) {
+      LOG.warn("Unable to discover LDAP servers", e);
+    }
+  }
+
+  private static List<String> splitUrls(@Nullable String ldapUrl) {
+    String[] ldapUrls = StringUtils.split(ldapUrl);
+    return ldapUrls == null || ldapUrls.length == 0 ? Collections.singletonList(ldapUrl) : Arrays.asList(ldapUrls);
+  }
+
+  @CheckForNull
+  private LdapConnectionPool createConnectionPool(Settings settings, String settingsPrefix) {
+    if (!settings.getBoolean(settingsPrefix + ".pool.enabled")) {
+      return null;
+    }
+    // Unlike JNDI pooling, StartTLS connections can be pooled, because they are used only by bind user and so stay encrypted
+    return new LdapConnectionPool(settings, settingsPrefix, () -> openBindContext(false));
   }
 
   /**
    * Returns {@code InitialDirContext} for Bind user.
+   * When connection pool is enabled, context goes back to the pool when closed.
    */
   public InitialDirContext createBindContext() throws NamingException {
+    if (!replicas.isEmpty()) {
+      return withFailover(LdapContextFactory::createBindContext);
+    }
+    if (connectionPool != null) {
+      return connectionPool.borrow();
+    }
+    return openBindContext(true);
+  }
+
+  /**
+   * Returns a new {@code LdapContext} for Bind user, which is never pooled, so that request controls such as paging
+   * can be set without affecting other searches.
+   */
+  public LdapContext createDedicatedBindContext() throws NamingException {
+    if (!replicas.isEmpty()) {
+      return withFailover(LdapContextFactory::createDedicatedBindContext);
+    }
+    return openBindContext(false);
+  }
+
+  private InitialLdapContext openBindContext(boolean pooling) throws NamingException {
     if (isGssapi()) {
-      return createInitialDirContextUsingGssapi(username, password);
+      return createInitialDirContextUsingGssapi();
     } else {
-      return createInitialDirContext(username, password, true);
+      return createInitialDirContext(username, password, pooling);
     }
   }
 
+  /**
+   * Checks credentials of specified user by binding as this user.
+   * When property {@code <prefix>.pool.verifyCredentials} is set, bind is performed on a pooled connection
+   * instead of a new one, but only for "simple" authentication.
+   *
+   * @throws NamingException if credentials are not valid, or if unable to open connection
+   */
+  public void checkCredentials(String principal, String credentials) throws NamingException {
+    withFailover(target -> {
+      target.verifyCredentials(principal, credentials);
+      return null;
+    });
+  }
+
+  private void verifyCredentials(String principal, String credentials) throws NamingException {
+    try {
+      if (connectionPool != null && verifyCredentialsUsingPool && AUTH_METHOD_SIMPLE.equals(authentication)) {
+        connectionPool.bind(principal, credentials);
+      } else {
+        ContextHelper.closeQuietly(createInitialDirContext(principal, credentials, false));
+      }
+    } catch (NamingException e) {
+      recordFailure(e);
+      throw e;
+    }
+    circuitBreaker.recordSuccess();
+  }
+
+  /**
+   * Returns Kerberos {@code LoginContext} for specified user.
+   */
+  public LoginContext createKrb5LoginContext(String principal, String credentials) throws LoginException {
+    return new LoginContext(getClass().getName(), null, new CallbackHandlerImpl(principal, credentials), krb5Configuration);
+  }
+
   /**
    * Returns {@code InitialDirContext} for specified user.
    * Note that pooling intentionally disabled by this method.
    */
   public InitialDirContext createUserContext(String principal, String credentials) throws NamingException {
+    if (!replicas.isEmpty()) {
+      return withFailover(replica -> replica.createUserContext(principal, credentials));
+    }
     return createInitialDirContext(principal, credentials, false);
   }
 
-  private InitialDirContext createInitialDirContext(String principal, String credentials, boolean pooling) throws NamingException {
+  /**
+   * @return factories to which a request should be sent, in order of preference, following ones being used for failover.
+   * Replicas which circuit breaker is open are excluded, but trial requests of half-open ones are only granted
+   * by {@link #withFailover(Operation)}, when request is actually sent.
+   */
+  public List<LdapContextFactory> getTargets() {
+    List<LdapContextFactory> candidates = replicas;
+    if (candidates.isEmpty()) {
+      return Collections.singletonList(this);
+    }
+    Map<LdapContextFactory, Double> expectedLatencies = new HashMap<>();
+    List<LdapContextFactory> targets = new ArrayList<>(candidates.size());
+    List<LdapContextFactory> unavailable = new ArrayList<>();
+    for (LdapContextFactory replica : candidates) {
+      if (!replica.circuitBreaker.isOpen()) {
+        // Replicas without measured latency come first, so that they get measured
+        expectedLatencies.put(replica, Math.max(0, replica.getLatencies().getAverage()));
+        (replica.isAvailable() ? targets : unavailable).add(replica);
+      }
+    }
+    if (srvDiscovery != null) {
+      targets = orderBySrvRecords(targets, ThreadLocalRandom.current());
+    } else {
+      targets.sort(Comparator.comparing(expectedLatencies::get));
+      if (powerOfTwoChoices && targets.size() > 2) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(targets.size());
+        int second = (first + 1 + random.nextInt(targets.size() - 1)) % targets.size();
+        // Targets are sorted, so that lowest index is the fastest of two
+        targets.add(0, targets.remove(Math.min(first, second)));
+      }
+    }
+    targets.addAll(unavailable);
+    return targets;
+  }
+
+  /**
+   * Orders replicas by priority, and randomly according to weights among those of the same priority, as specified by RFC 2782.
+   */
+  static List<LdapContextFactory> orderBySrvRecords(List<LdapContextFactory> replicas, Random random) {
+    // Replicas of weight 0 come first, so that they are rarely selected
+    Map<Integer, List<LdapContextFactory>> byPriority = replicas.stream()
+      .sorted(Comparator.comparingInt((LdapContextFactory replica) -> replica.srvRecord.getPriority()).thenComparingInt(replica -> replica.srvRecord.getWeight()))
+      .collect(Collectors.groupingBy(replica -> replica.srvRecord.getPriority(), TreeMap::new, Collectors.toList()));
+    List<LdapContextFactory> ordered = new ArrayList<>(replicas.size());
+    for (List<LdapContextFactory> remaining : byPriority.values()) {
+      while (!remaining.isEmpty()) {
+        int totalWeight = remaining.stream().mapToInt(replica -> replica.srvRecord.getWeight()).sum();
+        int selected = random.nextInt(totalWeight + 1);
+        int runningWeight = 0;
+        Iterator<LdapContextFactory> it = remaining.iterator();
+        while (it.hasNext()) {
+          LdapContextFactory replica = it.next();
+          runningWeight += replica.srvRecord.getWeight();
+          if (runningWeight >= selected) {
+            it.remove();
+            ordered.add(replica);
+            break;
+          }
+        }
+      }
+    }
+    return ordered;
+  }
+
+  /**
+   * Performs operation on targets until first one, which can be reached, and which has a pooled connection available.
+   * Trial request of a half-open circuit breaker is granted here, right before operation is performed on the target.
+   */
+  <T> T withFailover(Operation<T> operation) throws NamingException {
+    NamingException failure = null;
+    for (LdapContextFactory target : getTargets()) {
+      LdapCircuitBreaker breaker = target.circuitBreaker;
+      if (!breaker.allowRequest()) {
+        // Trial request of half-open server is already in progress
+        continue;
+      }
+      try {
+        T result = operation.perform(target);
+        breaker.recordSuccess();
+        return result;
+      } catch (NamingException e) {
+        if (LdapCircuitBreaker.isLocalFailure(e)) {
+          breaker.cancelTrial();
+        } else if (!LdapCircuitBreaker.isConnectionFailure(e)) {
+          // Failure reported by the server, which is thus reachable
+          breaker.recordSuccess();
+        }
+        if (!LdapCircuitBreaker.isConnectionFailure(e) && !(e instanceof LdapPoolExhaustedException)) {
+          throw e;
+        }
+        LOG.debug("Unable to reach LDAP server {}: {}", target.getProviderUrl(), e.getMessage());
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    throw new ServiceUnavailableException(replicas.isEmpty()
+      ? ("Circuit breaker of LDAP server " + getProviderUrl() + " is open")
+      : ("No replica of LDAP server " + getProviderUrl() + " is available"));
+  }
+
+  interface Operation<T> {
+    T perform(LdapContextFactory target) throws NamingException;
+  }
+
+  private InitialLdapContext createInitialDirContext(String principal, String credentials, boolean pooling) throws NamingException {
     final InitialLdapContext ctx;
     if (startTLS) {
-      // Note that pooling is not enabled for such connections, because "Stop TLS" is not performed.
-      Properties env = new Properties();
-      env.put(Context.INITIAL_CONTEXT_FACTORY, factory);
-      env.put(Context.PROVIDER_URL, providerUrl);
-      env.put(Context.REFERRAL, referral);
+      // Note that JNDI pooling is not enabled for such connections, because "Stop TLS" is not performed.
+      // Use property "pool.enabled" to keep them encrypted in our own pool instead.
       // At this point env should not contain properties SECURITY_AUTHENTICATION, SECURITY_PRINCIPAL and SECURITY_CREDENTIALS to avoid
       // "bind" operation prior to StartTLS:
-      ctx = new InitialLdapContext(env, null);
+      ctx = new InitialLdapContext(newEnvironment(connectionEnvironment), null);
       // http://docs.oracle.com/javase/jndi/tutorial/ldap/ext/starttls.html
       StartTlsResponse tls = (StartTlsResponse) ctx.extendedOperation(new StartTlsRequest());
       try {
         tls.negotiate();
       } catch (IOException e) {
+        ContextHelper.closeQuietly(ctx);
         NamingException ex = new NamingException("StartTLS failed");
         ex.initCause(e);
         throw ex;
@@ -140,32 +519,47 @@ public class LdapContextFactory {
     return ctx;
   }
 
-  private InitialDirContext createInitialDirContextUsingGssapi(String principal, String credentials) throws NamingException {
-    Configuration.setConfiguration(new Krb5LoginConfiguration());
-    InitialDirContext initialDirContext;
+  private InitialLdapContext createInitialDirContextUsingGssapi() throws NamingException {
+    InitialLdapContext initialDirContext;
     try {
-      LoginContext lc = new LoginContext(getClass().getName(), new CallbackHandlerImpl(principal, credentials));
-      lc.login();
-      initialDirContext = Subject.doAs(lc.getSubject(), new PrivilegedExceptionAction<InitialDirContext>() {
+      initialDirContext = Subject.doAs(krb5SubjectCache.getSubject(), new PrivilegedExceptionAction<InitialLdapContext>() {
         @Override
-        public InitialDirContext run() throws NamingException {
-          Properties env = new Properties();
-          env.put(Context.INITIAL_CONTEXT_FACTORY, factory);
-          env.put(Context.PROVIDER_URL, providerUrl);
-          env.put(Context.REFERRAL, referral);
-          return new InitialLdapContext(env, null);
+        public InitialLdapContext run() throws NamingException {
+          return new InitialLdapContext(newEnvironment(connectionEnvironment), null);
         }
       });
-    } catch (LoginException | PrivilegedActionException e) {
+    } catch (LoginException e) {
+      krb5SubjectCache.invalidate();
       NamingException namingException = new NamingException(e.getMessage());
       namingException.initCause(e);
       throw namingException;
+    } catch (PrivilegedActionException e) {
+      NamingException cause = (NamingException) e.getException();
+      if (cause instanceof AuthenticationException) {
+        // Ticket might have been rejected by the server, whereas other failures, such as unreachable server, don't require new login
+        krb5SubjectCache.invalidate();
+      }
+      throw cause;
     }
     return initialDirContext;
   }
 
-  private Properties getEnvironment(@Nullable String principal, @Nullable String credentials, boolean pooling) {
-    Properties env = new Properties();
+  private Map<String, Object> createConnectionEnvironment() {
+    Map<String, Object> env = new HashMap<>();
+    env.put(Context.INITIAL_CONTEXT_FACTORY, factory);
+    env.put(Context.PROVIDER_URL, providerUrl);
+    env.put(Context.REFERRAL, referral);
+    if (connectTimeout > 0) {
+      env.put(SUN_CONNECT_TIMEOUT_PROPERTY, Long.toString(connectTimeout));
+    }
+    if (readTimeout > 0) {
+      env.put(SUN_READ_TIMEOUT_PROPERTY, Long.toString(readTimeout));
+    }
+    return Collections.unmodifiableMap(env);
+  }
+
+  private Map<String, Object> createBindEnvironment(boolean pooling) {
+    Map<String, Object> env = new HashMap<>(connectionEnvironment);
     env.put(Context.SECURITY_AUTHENTICATION, authentication);
     if (realm != null) {
       env.put(SASL_REALM_PROPERTY, realm);
@@ -174,20 +568,81 @@ public class LdapContextFactory {
       // Enable connection pooling
       env.put(SUN_CONNECTION_POOLING_PROPERTY, "true");
     }
-    env.put(Context.INITIAL_CONTEXT_FACTORY, factory);
-    env.put(Context.PROVIDER_URL, providerUrl);
-    env.put(Context.REFERRAL, referral);
+    return Collections.unmodifiableMap(env);
+  }
+
+  private Hashtable<String, Object> getEnvironment(@Nullable String principal, @Nullable String credentials, boolean pooling) {
+    Hashtable<String, Object> env = newEnvironment(pooling ? pooledBindEnvironment : bindEnvironment);
     if (principal != null) {
       env.put(Context.SECURITY_PRINCIPAL, principal);
     }
     // Note: debug is intentionally was placed here - in order to not expose password in log
-    LOG.debug("Initializing LDAP context {}", env);
+    LOG.debug("Initializing LDAP context for {}", principal);
     if (credentials != null) {
       env.put(Context.SECURITY_CREDENTIALS, credentials);
     }
     return env;
   }
 
+  private Hashtable<String, Object> newEnvironment(Map<String, Object> baseEnvironment) {
+    Hashtable<String, Object> env = new Hashtable<>(baseEnvironment);
+    if (adaptiveReadTimeout) {
+      env.put(SUN_READ_TIMEOUT_PROPERTY, Long.toString(getReadTimeout()));
+    }
+    return env;
+  }
+
+  /**
+   * Returns read timeout for new connections. When property {@code <prefix>.adaptiveReadTimeout} is set,
+   * it is derived from latencies observed on this server and bounded by {@code <prefix>.readTimeout}.
+   * Note that pooled connections keep the timeout they were created with.
+   *
+   * @return read timeout in milliseconds, or 0 if there is no timeout
+   */
+  public long getReadTimeout() {
+    if (!adaptiveReadTimeout || latencies.getSampleCount() < ADAPTIVE_READ_TIMEOUT_MIN_SAMPLES) {
+      return readTimeout;
+    }
+    long timeout = Math.max(ADAPTIVE_READ_TIMEOUT_MIN, latencies.getPercentile(99) * ADAPTIVE_READ_TIMEOUT_MULTIPLIER);
+    return readTimeout > 0 ? Math.min(readTimeout, timeout) : timeout;
+  }
+
+  /**
+   * Records latency of a successful request to this server.
+   *
+   * @param latency in milliseconds
+   */
+  public void recordLatency(long latency) {
+    latencies.record(latency);
+    circuitBreaker.recordSuccess();
+  }
+
+  /**
+   * Records failed request to this server, so that circuit breaker can open.
+   */
+  public void recordFailure(NamingException e) {
+    circuitBreaker.recordFailure(e);
+  }
+
+  /**
+   * @return true if circuit breaker of this server, or of all its replicas, is open, so that requests should not be sent to it.
+   * Doesn't start trial of a half-open breaker, which is granted only when request is actually sent.
+   */
+  public boolean isCircuitBreakerOpen() {
+    if (!replicas.isEmpty()) {
+      return replicas.stream().allMatch(replica -> replica.circuitBreaker.isOpen());
+    }
+    return circuitBreaker.isOpen();
+  }
+
+  public LdapCircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  public LdapLatencyRecorder getLatencies() {
+    return latencies;
+  }
+
   public boolean isSasl() {
     return AUTH_METHOD_DIGEST_MD5.equals(authentication) ||
       AUTH_METHOD_CRAM_MD5.equals(authentication) ||
@@ -207,16 +662,164 @@ public class LdapContextFactory {
     if (StringUtils.isBlank(username) && isSasl()) {
       throw new IllegalArgumentException("When using SASL - property ldap.bindDn is required");
     }
+    if (!replicas.isEmpty()) {
+      testReplicas();
+      return;
+    }
+    InitialDirContext context = null;
     try {
-      createBindContext();
+      context = createBindContext();
       LOG.info("Test LDAP connection on {}: OK", providerUrl);
     } catch (NamingException e) {
       LOG.info("Test LDAP connection: FAIL");
       throw new LdapException("Unable to open LDAP connection", e);
+    } finally {
+      ContextHelper.closeQuietly(context);
     }
   }
 
+  /**
+   * Tests all replicas, and marks those, which can't be reached, as not available.
+   *
+   * @throws LdapException if none of them can be reached
+   */
+  private void testReplicas() {
+    LdapException failure = null;
+    for (LdapContextFactory replica : replicas) {
+      try {
+        replica.testConnection();
+        replica.setAvailable(true);
+      } catch (LdapException e) {
+        LOG.warn("LDAP replica {} is not available: {}", replica.getProviderUrl(), e.getMessage());
+        replica.setAvailable(false);
+        failure = failure == null ? e : failure;
+      }
+    }
+    if (failure != null && replicas.stream().noneMatch(LdapContextFactory::isAvailable)) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Opens pooled connections in advance, if connection pool is enabled.
+   * Failure is only logged, because connection was already tested.
+   */
+  public void warmUp() {
+    for (LdapContextFactory replica : replicas) {
+      if (replica.isAvailable()) {
+        replica.warmUp();
+      }
+    }
+    if (connectionPool == null) {
+      return;
+    }
+    try {
+      connectionPool.warmUp();
+      LOG.info("LDAP connection pool on {}: {} connection(s) opened", providerUrl, connectionPool.getIdleCount());
+    } catch (NamingException e) {
+      LOG.warn("Unable to open pooled LDAP connections on {}: {}", providerUrl, e.getMessage());
+    }
+  }
+
+  /**
+   * Starts periodic health checks in background, if property {@code <prefix>.healthCheckInterval} is set.
+   */
+  public synchronized void startHealthCheck() {
+    healthCheckStarted = true;
+    replicas.forEach(LdapContextFactory::startHealthCheck);
+    if (srvDiscovery != null && srvRefreshInterval > 0 && srvRefresher == null) {
+      srvRefresher = Executors.newSingleThreadScheduledExecutor(new LdapThreadFactory("srv-refresh"));
+      srvRefresher.scheduleWithFixedDelay(this::refreshSrvRecords, srvRefreshInterval, srvRefreshInterval, TimeUnit.MILLISECONDS);
+    }
+    if (hedge != null) {
+      hedge.startHealthCheck();
+    }
+    if (healthProber != null) {
+      healthProber.start();
+    }
+  }
+
+  /**
+   * Closes pooled connections and stops background tasks.
+   */
+  public synchronized void close() {
+    if (srvRefresher != null) {
+      srvRefresher.shutdownNow();
+      srvRefresher = null;
+    }
+    replicas.forEach(LdapContextFactory::close);
+    if (hedge != null) {
+      hedgeTimer.shutdownNow();
+      hedgeExecutor.shutdownNow();
+      hedge.close();
+    }
+    if (healthProber != null) {
+      healthProber.stop();
+    }
+    if (connectionPool != null) {
+      connectionPool.close();
+    }
+    if (krb5SubjectCache != null) {
+      krb5SubjectCache.close();
+    }
+  }
+
+  /**
+   * @return false if server, or all its replicas, is known to be unreachable, for example when connection test failed at startup
+   */
+  public boolean isAvailable() {
+    return available && (replicas.isEmpty() || replicas.stream().anyMatch(LdapContextFactory::isAvailable));
+  }
+
+  public void setAvailable(boolean available) {
+    this.available = available;
+  }
+
+  /**
+   * @return alternate server, to which searches are also sent when this one is slow to answer,
+   * or null if property {@code <prefix>.hedgeUrl} is not set
+   */
+  @CheckForNull
+  public LdapContextFactory getHedge() {
+    return hedge;
+  }
+
+  /**
+   * @return time in milliseconds after which a search is also sent to alternate server, that is the 95th percentile of
+   * latencies observed on this server, or -1 if not enough latencies were observed yet
+   */
+  public long getHedgeDelay() {
+    return latencies.getSampleCount() < HEDGE_MIN_SAMPLES ? -1 : latencies.getPercentile(95);
+  }
+
+  /**
+   * @return executor of searches sent to alternate server, which rejects them when all its threads are busy,
+   * or null if there is no alternate server
+   */
+  @CheckForNull
+  ExecutorService getHedgeExecutor() {
+    return hedgeExecutor;
+  }
+
+  /**
+   * @return scheduler of searches sent to alternate server once delay elapsed, or null if there is no alternate server
+   */
+  @CheckForNull
+  ScheduledExecutorService getHedgeTimer() {
+    return hedgeTimer;
+  }
+
+  /**
+   * @return replicas of this server, or empty list if it has a single URL
+   */
+  public List<LdapContextFactory> getReplicas() {
+    return replicas;
+  }
+
   public String getProviderUrl() {
+    if (srvDiscovery != null) {
+      return replicas.stream().map(LdapContextFactory::getProviderUrl).collect(Collectors.joining(" "));
+    }
     return providerUrl;
   }
 
@@ -224,6 +827,14 @@ public class LdapContextFactory {
     return referral;
   }
 
+  /**
+   * @return pool of bind contexts, or null if property {@code <prefix>.pool.enabled} is not set
+   */
+  @CheckForNull
+  public LdapConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
   private static String getReferralsMode(Settings settings, String followReferralsSettingKey) {
     if (settings.hasKey(followReferralsSettingKey)) {
       return settings.getBoolean(followReferralsSettingKey) ? REFERRALS_FOLLOW_MODE : REFERRALS_IGNORE_MODE;
@@ -235,7 +846,7 @@ public class LdapContextFactory {
   @Override
   public String toString() {
     return getClass().getSimpleName() + "{" +
-      "url=" + providerUrl +
+      "url=" + getProviderUrl() +
       ", authentication=" + authentication +
       ", factory=" + factory +
       ", bindDn=" + username +
@@ -0,0 +1,112 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Keeps groups of users, and returns them immediately even when they might be outdated, so that group searches
+ * don't add to login latency. Groups older than the soft time to live are refreshed in background, and only groups
+ * older than the hard time to live, or not yet known, are searched while the caller waits.
+ */
+public class LdapGroupsCache {
+
+  private static final Logger LOG = Loggers.get(LdapGroupsCache.class);
+
+  private final LdapCache<String, Entry> entries;
+  private final long softTimeToLive;
+  private final Executor refreshExecutor;
+
+  /**
+   * @param maxSize maximum number of users
+   * @param softTimeToLive in milliseconds after which groups are refreshed in background
+   * @param hardTimeToLive in milliseconds after which groups are no longer returned, and searched again
+   * @param refreshExecutor executor of background refreshes
+   */
+  public LdapGroupsCache(int maxSize, long softTimeToLive, long hardTimeToLive, Executor refreshExecutor) {
+    this.entries = new LdapCache<>(maxSize, hardTimeToLive);
+    this.softTimeToLive = softTimeToLive;
+    this.refreshExecutor = refreshExecutor;
+  }
+
+  /**
+   * @param loader searches groups of user while the caller waits
+   * @param refresher searches groups of user in background, so without access to the current request
+   * @throws LdapException if groups are not known, and loader fails
+   */
+  public Collection<String> get(String username, Supplier<Collection<String>> loader, Supplier<Collection<String>> refresher) {
+    Entry entry = entries.get(username);
+    if (entry == null) {
+      entry = new Entry(loader.get());
+      entries.put(username, entry);
+    } else if (System.currentTimeMillis() - entry.loadedAt > softTimeToLive && entry.refreshing.compareAndSet(false, true)) {
+      refresh(username, entry, refresher);
+    }
+    return entry.groups;
+  }
+
+  private void refresh(String username, Entry stale, Supplier<Collection<String>> refresher) {
+    try {
+      refreshExecutor.execute(() -> {
+        try {
+          entries.put(username, new Entry(refresher.get()));
+        } catch (RuntimeException e) {
+          // Stale groups are still returned until hard time to live
+          LOG.debug("Unable to refresh groups of user " + username, e);
+        } finally {
+          stale.refreshing.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Unable to refresh groups of user {}: {}", username, e.getMessage());
+      stale.refreshing.set(false);
+    }
+  }
+
+  public void invalidate(String username) {
+    entries.remove(username);
+  }
+
+  /**
+   * @return cache of groups, which counts hits and misses
+   */
+  public LdapCache<String, ?> getEntries() {
+    return entries;
+  }
+
+  private static final class Entry {
+    private final Collection<String> groups;
+    private final long loadedAt = System.currentTimeMillis();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    Entry(Collection<String> groups) {
+      this.groups = Collections.unmodifiableSet(new HashSet<>(groups));
+    }
+  }
+
+}
@@ -20,6 +20,7 @@
 package org.sonar.plugins.ldap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -29,6 +30,8 @@ import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchResult;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
 import org.sonar.api.security.ExternalGroupsProvider;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
@@ -45,38 +48,77 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
   private final Map<String, LdapContextFactory> contextFactories;
   private final Map<String, LdapUserMapping> userMappings;
   private final Map<String, LdapGroupMapping> groupMappings;
+  private final LdapServerSelector serverSelector;
+  private final LdapUserLookup userLookup;
+  private final LdapGroupsCache groupsCache;
+  // Concurrent searches of groups of the same user on the same server share a single search
+  private final LdapSingleFlight<List<String>, Collection<String>> groupSearches = new LdapSingleFlight<>();
 
   public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping) {
+    this(contextFactories, userMappings, groupMapping, new LdapServerSelector(contextFactories), new LdapUserLookup(contextFactories, userMappings, groupMapping));
+  }
+
+  public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping,
+    LdapServerSelector serverSelector, LdapUserLookup userLookup) {
+    this(contextFactories, userMappings, groupMapping, serverSelector, userLookup, null);
+  }
+
+  /**
+   * @param groupsCache cache of groups, or null if groups should be searched on each call
+   */
+  public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping,
+    LdapServerSelector serverSelector, LdapUserLookup userLookup, @Nullable LdapGroupsCache groupsCache) {
     this.contextFactories = contextFactories;
     this.userMappings = userMappings;
     this.groupMappings = groupMapping;
+    this.serverSelector = serverSelector;
+    this.userLookup = userLookup;
+    this.groupsCache = groupsCache;
   }
 
   @Override
   public Collection<String> doGetGroups(Context context) {
-    return getGroups(context.getUsername());
+    return getGroups(context.getUsername(), context.getRequest());
   }
 
   /**
    * @throws LdapException if unable to retrieve groups
    */
   public Collection<String> getGroups(String username) {
+    return getGroups(username, null);
+  }
+
+  /**
+   * @param request current HTTP request, used to reuse user entries found by authenticator, or null
+   * @see #getGroups(String)
+   */
+  public Collection<String> getGroups(String username, @Nullable HttpServletRequest request) {
     checkPrerequisites(username);
+    if (groupsCache == null) {
+      return searchGroups(username, request);
+    }
+    return groupsCache.get(username, () -> searchGroups(username, request), () -> searchGroups(username, null));
+  }
+
+  private Collection<String> searchGroups(String username, @Nullable HttpServletRequest request) {
     Set<String> groups = new HashSet<>();
     List<LdapException> exceptions = new ArrayList<>();
-    for (String serverKey : userMappings.keySet()) {
+    for (String serverKey : serverSelector.select(username, userMappings.keySet())) {
       if (!groupMappings.containsKey(serverKey)) {
         // No group mapping for this ldap instance.
         continue;
       }
-      SearchResult searchResult = searchUserGroups(username, exceptions, serverKey);
+      SearchResult searchResult = searchUserGroups(username, exceptions, serverKey, request);
 
       if (searchResult != null) {
         try {
-          NamingEnumeration<SearchResult> result = groupMappings
-            .get(serverKey)
-            .createSearch(contextFactories.get(serverKey), searchResult).find();
-          groups.addAll(mapGroups(serverKey, result));
+          groups.addAll(groupSearches.execute(Arrays.asList(serverKey, username), () -> {
+            NamingEnumeration<SearchResult> result = groupMappings
+              .get(serverKey)
+              .createSearch(contextFactories.get(serverKey), searchResult).find();
+            return mapGroups(serverKey, result);
+          }));
+          serverSelector.resolved(username, serverKey);
           // if no exceptions occur, we found the user and his groups and mapped his details.
           break;
         } catch (NamingException e) {
@@ -106,14 +148,12 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
     }
   }
 
-  private SearchResult searchUserGroups(String username, List<LdapException> exceptions, String serverKey) {
+  private SearchResult searchUserGroups(String username, List<LdapException> exceptions, String serverKey, @Nullable HttpServletRequest request) {
     SearchResult searchResult = null;
     try {
       LOG.debug("Requesting groups for user {}", username);
 
-      searchResult = userMappings.get(serverKey).createSearch(contextFactories.get(serverKey), username)
-        .returns(groupMappings.get(serverKey).getRequiredUserAttributes())
-        .findUnique();
+      searchResult = userLookup.find(request, serverKey, username);
     } catch (NamingException e) {
       // just in case if Sonar silently swallowed exception
       LOG.debug(e.getMessage(), e);
@@ -0,0 +1,104 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingException;
+import javax.naming.directory.InitialDirContext;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Periodically reads root DSE of an LDAP server in background, so that its availability and latency are known
+ * before a user request hits it.
+ */
+public class LdapHealthProber {
+
+  private static final Logger LOG = Loggers.get(LdapHealthProber.class);
+
+  private final LdapContextFactory contextFactory;
+  private final long interval;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param interval in milliseconds between two probes
+   */
+  public LdapHealthProber(LdapContextFactory contextFactory, long interval) {
+    this.contextFactory = contextFactory;
+    this.interval = interval;
+  }
+
+  public synchronized void start() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new LdapThreadFactory("health-check"));
+      scheduler.scheduleWithFixedDelay(this::probe, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Performs a single probe and updates availability and latency of the server.
+   */
+  void probe() {
+    InitialDirContext context = null;
+    try {
+      context = contextFactory.createBindContext();
+      // Only the read is timed, like for searches, since recorded latencies drive read timeout, hedging and ordering of replicas
+      long start = System.currentTimeMillis();
+      context.getAttributes("", ContextHelper.NO_ATTRIBUTES);
+      contextFactory.recordLatency(System.currentTimeMillis() - start);
+      if (!contextFactory.isAvailable()) {
+        LOG.info("LDAP server {} is available again", contextFactory.getProviderUrl());
+      }
+      contextFactory.setAvailable(true);
+    } catch (NamingException e) {
+      if (LdapCircuitBreaker.isLocalFailure(e)) {
+        // Pool busy with user requests, which says nothing about the server
+        LOG.debug("Unable to probe LDAP server {}: {}", contextFactory.getProviderUrl(), e.getMessage());
+      } else {
+        contextFactory.recordFailure(e);
+        markUnavailable(e);
+      }
+    } catch (RuntimeException e) {
+      markUnavailable(e);
+    } finally {
+      ContextHelper.closeQuietly(context);
+    }
+    if (contextFactory.getConnectionPool() != null) {
+      contextFactory.getConnectionPool().evictIdle();
+    }
+  }
+
+  private void markUnavailable(Exception e) {
+    if (contextFactory.isAvailable()) {
+      LOG.warn("LDAP server {} is not available: {}", contextFactory.getProviderUrl(), e.getMessage());
+    }
+    contextFactory.setAvailable(false);
+  }
+
+}
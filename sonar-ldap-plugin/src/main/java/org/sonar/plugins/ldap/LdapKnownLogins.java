@@ -0,0 +1,247 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.PartialResultException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Periodically pages through users of an LDAP server in background, and keeps their logins in a {@link LdapBloomFilter},
+ * so that this server is not searched for logins which it definitely didn't contain when loaded.
+ * Login attributes are those compared to the login in the user request, which is searched with {@code *} instead of the login.
+ * <p>
+ * Accounts created since logins were loaded are not found on this server until next refresh. Filter is trusted only while
+ * less than two refresh intervals old, so such accounts stay unknown for at most twice {@code <prefix>.loginFilter.refreshInterval}.
+ * When logins can't be refreshed in time, the filter only makes this server searched after the others.
+ * <p>
+ * Enabled by property {@code <prefix>.loginFilter.refreshInterval} in milliseconds. Memory footprint is bounded by
+ * {@code <prefix>.loginFilter.maxMemory} in bytes (1 MB by default), and targeted false positive rate is defined by
+ * {@code <prefix>.loginFilter.falsePositiveRate} (0.01 by default).
+ */
+public class LdapKnownLogins {
+
+  private static final Logger LOG = Loggers.get(LdapKnownLogins.class);
+
+  private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+  private static final long DEFAULT_MAX_MEMORY = 1024 * 1024L;
+  private static final int PAGE_SIZE = 500;
+  private static final String LOGIN_PARAMETER = "{0}";
+  private static final Pattern LOGIN_ASSERTION = Pattern.compile("\\(([^()=~<>]+)=\\{0\\}\\)");
+
+  private final LdapContextFactory contextFactory;
+  private final LdapUserMapping userMapping;
+  private final long refreshInterval;
+  private final double falsePositiveRate;
+  private final long maxMemory;
+  private final String[] loginAttributes;
+  private volatile LdapBloomFilter filter;
+  private volatile long loadedAt;
+  private ScheduledExecutorService scheduler;
+
+  public LdapKnownLogins(Settings settings, String settingsPrefix, LdapContextFactory contextFactory, LdapUserMapping userMapping) {
+    this.contextFactory = contextFactory;
+    this.userMapping = userMapping;
+    this.refreshInterval = settings.getLong(settingsPrefix + ".loginFilter.refreshInterval");
+    this.falsePositiveRate = settings.hasKey(settingsPrefix + ".loginFilter.falsePositiveRate")
+      ? settings.getDouble(settingsPrefix + ".loginFilter.falsePositiveRate") : DEFAULT_FALSE_POSITIVE_RATE;
+    this.maxMemory = settings.hasKey(settingsPrefix + ".loginFilter.maxMemory") ? settings.getLong(settingsPrefix + ".loginFilter.maxMemory") : DEFAULT_MAX_MEMORY;
+    this.loginAttributes = getLoginAttributes(userMapping.getRequest());
+    if (refreshInterval > 0 && loginAttributes == null) {
+      LOG.warn("Logins of {} can't be filtered, because login is not only compared for equality in request: {}",
+        contextFactory.getProviderUrl(), userMapping.getRequest());
+    }
+  }
+
+  /**
+   * @return attributes compared to the login, or null if login is not only compared for equality, for example in a substring assertion
+   */
+  @CheckForNull
+  static String[] getLoginAttributes(String request) {
+    Set<String> attributes = new LinkedHashSet<>();
+    Matcher matcher = LOGIN_ASSERTION.matcher(request);
+    while (matcher.find()) {
+      attributes.add(matcher.group(1).trim());
+    }
+    // Each occurrence of login must be an equality assertion
+    if (attributes.isEmpty() || LOGIN_ASSERTION.matcher(request).replaceAll("").contains(LOGIN_PARAMETER)) {
+      return null;
+    }
+    return attributes.toArray(new String[attributes.size()]);
+  }
+
+  public boolean isEnabled() {
+    return refreshInterval > 0 && loginAttributes != null;
+  }
+
+  public synchronized void start() {
+    if (scheduler == null && isEnabled()) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new LdapThreadFactory("login-filter"));
+      scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * @return false if login definitely doesn't belong to this server, true if it might, or if logins are not loaded yet
+   */
+  public boolean mightContain(String login) {
+    LdapBloomFilter current = filter;
+    return current == null || current.mightContain(login);
+  }
+
+  /**
+   * @return true if login definitely doesn't belong to this server, according to logins loaded recently enough to be trusted
+   */
+  public boolean rejects(String login) {
+    return isFresh() && !mightContain(login);
+  }
+
+  /**
+   * @return whether logins were loaded less than two refresh intervals ago, which tolerates the time taken by a refresh
+   */
+  public boolean isFresh() {
+    return filter != null && System.currentTimeMillis() - loadedAt < 2 * refreshInterval;
+  }
+
+  /**
+   * @return filter of loaded logins, or null if not loaded yet
+   */
+  @CheckForNull
+  public LdapBloomFilter getFilter() {
+    return filter;
+  }
+
+  void refresh() {
+    try {
+      load();
+    } catch (NamingException | RuntimeException e) {
+      // Previous filter is kept, as it is more likely to be complete than none
+      LOG.warn("Unable to load logins of " + contextFactory.getProviderUrl(), e);
+    }
+  }
+
+  /**
+   * Loads all logins, and replaces filter once complete, so that a partially loaded filter never rejects a login.
+   * Logins are first collected, so that the filter is sized for their actual number.
+   */
+  void load() throws NamingException {
+    long start = System.currentTimeMillis();
+    List<String> logins = new ArrayList<>();
+    String request = StringUtils.replace(userMapping.getRequest(), LOGIN_PARAMETER, "*");
+    SearchControls controls = new SearchControls();
+    controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    controls.setReturningAttributes(loginAttributes);
+    LdapContext context = contextFactory.createDedicatedBindContext();
+    try {
+      // Non critical, so that servers without paging return all results, or fail when exceeding their size limit
+      context.setRequestControls(new Control[] {new PagedResultsControl(PAGE_SIZE, Control.NONCRITICAL)});
+      byte[] cookie;
+      do {
+        NamingEnumeration<SearchResult> results = context.search(userMapping.getBaseDn(), request, controls);
+        try {
+          while (hasMore(results)) {
+            collect(results.next(), logins);
+          }
+        } finally {
+          results.close();
+        }
+        cookie = getCookie(context.getResponseControls());
+        context.setRequestControls(new Control[] {new PagedResultsControl(PAGE_SIZE, cookie, Control.NONCRITICAL)});
+      } while (cookie != null && cookie.length > 0);
+    } catch (IOException e) {
+      throw new LdapException("Unable to page through logins", e);
+    } finally {
+      ContextHelper.closeQuietly(context);
+    }
+
+    LdapBloomFilter loaded = new LdapBloomFilter(logins.size(), falsePositiveRate, maxMemory * 8);
+    for (String login : logins) {
+      loaded.put(login);
+    }
+    // Accounts created while paging might be missed, so age of logins is counted from start
+    loadedAt = start;
+    filter = loaded;
+    LOG.info("Loaded logins of {} in {} ms: {}", contextFactory.getProviderUrl(), System.currentTimeMillis() - start, loaded);
+  }
+
+  private void collect(SearchResult result, List<String> logins) throws NamingException {
+    for (String loginAttribute : loginAttributes) {
+      Attribute attribute = result.getAttributes().get(loginAttribute);
+      if (attribute != null) {
+        NamingEnumeration<?> values = attribute.getAll();
+        while (values.hasMore()) {
+          logins.add(String.valueOf(values.next()));
+        }
+      }
+    }
+  }
+
+  @CheckForNull
+  private static byte[] getCookie(Control[] controls) {
+    if (controls != null) {
+      for (Control control : controls) {
+        if (control instanceof PagedResultsResponseControl) {
+          return ((PagedResultsResponseControl) control).getCookie();
+        }
+      }
+    }
+    return null;
+  }
+
+  private static boolean hasMore(NamingEnumeration<SearchResult> results) throws NamingException {
+    try {
+      return results.hasMore();
+    } catch (PartialResultException e) {
+      // Referrals are not followed, as for user searches
+      LOG.debug("More result might be forthcoming if the referral is followed", e);
+      return false;
+    }
+  }
+
+}
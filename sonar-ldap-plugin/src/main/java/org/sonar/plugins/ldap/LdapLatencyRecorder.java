@@ -0,0 +1,86 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Arrays;
+
+/**
+ * Keeps latencies of the most recent requests to an LDAP server.
+ */
+public class LdapLatencyRecorder {
+
+  private static final int DEFAULT_CAPACITY = 256;
+  /**
+   * Weight of the most recent sample in the exponentially weighted moving average.
+   */
+  private static final double EWMA_WEIGHT = 0.3;
+
+  private final long[] samples;
+  private int count;
+  private int next;
+  private double average = -1;
+
+  public LdapLatencyRecorder() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public LdapLatencyRecorder(int capacity) {
+    this.samples = new long[capacity];
+  }
+
+  /**
+   * @param latency in milliseconds
+   */
+  public synchronized void record(long latency) {
+    samples[next] = latency;
+    next = (next + 1) % samples.length;
+    count = Math.min(count + 1, samples.length);
+    average = average < 0 ? latency : (EWMA_WEIGHT * latency + (1 - EWMA_WEIGHT) * average);
+  }
+
+  /**
+   * @return exponentially weighted moving average of latencies in milliseconds, or -1 if nothing was recorded
+   */
+  public synchronized double getAverage() {
+    return average;
+  }
+
+  public synchronized int getSampleCount() {
+    return count;
+  }
+
+  /**
+   * @param percentile for example 95 for the 95th percentile
+   * @return latency in milliseconds, or -1 if nothing was recorded
+   */
+  public long getPercentile(double percentile) {
+    long[] sorted;
+    synchronized (this) {
+      if (count == 0) {
+        return -1;
+      }
+      sorted = Arrays.copyOf(samples, count);
+    }
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+
+}
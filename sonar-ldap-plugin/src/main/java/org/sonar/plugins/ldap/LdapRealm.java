@@ -19,17 +19,28 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.sonar.api.security.Authenticator;
 import org.sonar.api.security.ExternalGroupsProvider;
 import org.sonar.api.security.ExternalUsersProvider;
 import org.sonar.api.security.SecurityRealm;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
 
 /**
  * @author Evgeny Mandrikov
  */
 public class LdapRealm extends SecurityRealm {
 
+  private static final Logger LOG = Loggers.get(LdapRealm.class);
+
   private LdapUsersProvider usersProvider;
   private LdapGroupsProvider groupsProvider;
   private LdapAuthenticator authenticator;
@@ -45,22 +56,85 @@ public class LdapRealm extends SecurityRealm {
   }
 
   /**
-   * Initializes LDAP realm and tests connection.
+   * Initializes LDAP realm, tests connection and warms up connection pools.
+   * Servers are tested concurrently, and those which can't be reached are marked as not available.
    *
-   * @throws LdapException if a NamingException was thrown during test
+   * @throws LdapException if none of the servers can be reached
    */
   @Override
   public void init() {
     Map<String, LdapContextFactory> contextFactories = settingsManager.getContextFactories();
     Map<String, LdapUserMapping> userMappings = settingsManager.getUserMappings();
-    usersProvider = new LdapUsersProvider(contextFactories, userMappings);
-    authenticator = new LdapAuthenticator(contextFactories, userMappings);
+    LdapServerSelector serverSelector = settingsManager.getServerSelector();
+    LdapUserLookup userLookup = settingsManager.getUserLookup();
+    usersProvider = new LdapUsersProvider(userMappings, serverSelector, userLookup);
+    authenticator = new LdapAuthenticator(contextFactories, userMappings, serverSelector, userLookup, settingsManager.getLookupExecutor());
     Map<String, LdapGroupMapping> groupMappings = settingsManager.getGroupMappings();
     if (!groupMappings.isEmpty()) {
-      groupsProvider = new LdapGroupsProvider(contextFactories, userMappings, groupMappings);
+      groupsProvider = new LdapGroupsProvider(contextFactories, userMappings, groupMappings, serverSelector, userLookup, settingsManager.getGroupsCache());
     }
+    testConnections(contextFactories);
     for (LdapContextFactory contextFactory : contextFactories.values()) {
-      contextFactory.testConnection();
+      contextFactory.startHealthCheck();
+    }
+    for (LdapKnownLogins knownLogins : settingsManager.getKnownLogins().values()) {
+      knownLogins.start();
+    }
+  }
+
+  private void testConnections(Map<String, LdapContextFactory> contextFactories) {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, contextFactories.size()), new LdapThreadFactory("connection-test"));
+    try {
+      Map<String, Future<?>> tests = new LinkedHashMap<>();
+      for (Map.Entry<String, LdapContextFactory> entry : contextFactories.entrySet()) {
+        LdapContextFactory contextFactory = entry.getValue();
+        tests.put(entry.getKey(), executor.submit(() -> {
+          contextFactory.testConnection();
+          contextFactory.warmUp();
+        }));
+      }
+      long timeout = settingsManager.getConnectionTestTimeout();
+      long deadline = timeout > 0 ? (System.currentTimeMillis() + timeout) : Long.MAX_VALUE;
+      LdapException failure = null;
+      boolean available = false;
+      for (Map.Entry<String, Future<?>> test : tests.entrySet()) {
+        LdapContextFactory contextFactory = contextFactories.get(test.getKey());
+        try {
+          awaitUntil(test.getValue(), deadline);
+          contextFactory.setAvailable(true);
+          available = true;
+        } catch (LdapException e) {
+          LOG.warn("LDAP server " + test.getKey() + " is not available", e);
+          contextFactory.setAvailable(false);
+          failure = failure == null ? e : failure;
+        }
+      }
+      if (!available && failure != null) {
+        throw failure;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void awaitUntil(Future<?> test, long deadline) {
+    try {
+      if (deadline == Long.MAX_VALUE) {
+        test.get();
+      } else {
+        test.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new LdapException("Unable to open LDAP connection", e.getCause());
+    } catch (TimeoutException e) {
+      test.cancel(true);
+      throw new LdapException("Unable to open LDAP connection", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LdapException("Unable to open LDAP connection", e);
     }
   }
 
@@ -19,7 +19,16 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.PartialResultException;
@@ -115,20 +124,101 @@ public class LdapSearch {
   }
 
   /**
+   * When server has an alternate one, and doesn't answer within the 95th percentile of its observed latencies,
+   * search is also sent to the alternate server, and first answer wins.
+   *
    * @throws NamingException if unable to perform search
    */
   public NamingEnumeration<SearchResult> find() throws NamingException {
     LOG.debug("Search: {}", this);
+    LdapContextFactory hedge = contextFactory.getHedge();
+    if (hedge != null) {
+      // Percentile is computed only when there is an alternate server, since it requires to sort samples
+      long hedgeDelay = contextFactory.getHedgeDelay();
+      if (hedgeDelay >= 0) {
+        return findHedged(hedge, hedgeDelay);
+      }
+    }
+    return contextFactory.withFailover(target -> find(target, false, null));
+  }
+
+  /**
+   * Search is sent to this server from the calling thread, and only sent to the alternate server from another thread
+   * once delay elapsed. If the alternate server answers first, the calling thread is interrupted to stop waiting.
+   */
+  private NamingEnumeration<SearchResult> findHedged(LdapContextFactory hedge, long hedgeDelay) throws NamingException {
+    Hedging hedging = new Hedging(Thread.currentThread());
+    ScheduledFuture<?> timer = contextFactory.getHedgeTimer().schedule(() -> startHedge(hedge, hedging), hedgeDelay, TimeUnit.MILLISECONDS);
+    NamingException failure;
+    try {
+      // Results are read before the search completes, so that calling thread is never interrupted afterwards
+      return contextFactory.withFailover(target -> find(target, true, hedging));
+    } catch (NamingException e) {
+      failure = e;
+    } finally {
+      timer.cancel(false);
+      hedging.primaryDone();
+    }
+    if (!hedging.isStarted()) {
+      throw failure;
+    }
+    return hedging.awaitHedge(failure);
+  }
+
+  private void startHedge(LdapContextFactory hedge, Hedging hedging) {
+    if (!hedging.start()) {
+      return;
+    }
+    LOG.debug("No answer from {}, sending search to {}", contextFactory.getProviderUrl(), hedge.getProviderUrl());
+    try {
+      contextFactory.getHedgeExecutor().execute(() -> {
+        try {
+          hedging.hedgeDone(hedge.withFailover(target -> find(target, true, null)));
+        } catch (NamingException | RuntimeException e) {
+          LOG.debug("Hedged search failed: {}", e.getMessage());
+          hedging.hedgeFailed(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Search not hedged, because all threads are busy");
+      hedging.hedgeFailed(e);
+    }
+  }
+
+  /**
+   * @param readAll whether results should be read before context closed, which is anyway the case for pooled connections
+   * @param hedging hedging of the search performed by the calling thread, or null
+   */
+  private NamingEnumeration<SearchResult> find(LdapContextFactory target, boolean readAll, @Nullable Hedging hedging) throws NamingException {
     NamingEnumeration<SearchResult> result;
     InitialDirContext context = null;
     boolean threw = false;
     try {
-      context = contextFactory.createBindContext();
+      context = target.createBindContext();
       SearchControls controls = new SearchControls();
       controls.setSearchScope(scope);
       controls.setReturningAttributes(returningAttributes);
+      long start = System.currentTimeMillis();
       result = context.search(baseDn, request, parameters, controls);
+      if (readAll || target.getConnectionPool() != null) {
+        // Connection goes back to the pool once context closed, so results can't be read lazily
+        result = readAll(result);
+      }
+      long latency = System.currentTimeMillis() - start;
+      target.recordLatency(latency);
+      if (contextFactory.getReplicas().contains(target)) {
+        // Latency of the server as a whole, used for hedging
+        contextFactory.getLatencies().record(latency);
+      }
       threw = true;
+    } catch (NamingException e) {
+      if (hedging != null && hedging.isAborted()) {
+        // Alternate server answered first: connection is dropped instead of being returned to the pool
+        Thread.currentThread().interrupt();
+      } else {
+        target.recordFailure(e);
+      }
+      throw e;
     } finally {
       ContextHelper.close(context, threw);
     }
@@ -151,6 +241,18 @@ public class LdapSearch {
     return null;
   }
 
+  private static NamingEnumeration<SearchResult> readAll(NamingEnumeration<SearchResult> result) throws NamingException {
+    List<SearchResult> list = new ArrayList<>();
+    try {
+      while (hasMore(result)) {
+        list.add(result.next());
+      }
+    } finally {
+      result.close();
+    }
+    return new SearchResults(list);
+  }
+
   private static boolean hasMore(NamingEnumeration<SearchResult> result) throws NamingException {
     try {
       return result.hasMore();
@@ -188,4 +290,111 @@ public class LdapSearch {
     }
   }
 
+  /**
+   * Results, which were already read from the server.
+   */
+  private static final class SearchResults implements NamingEnumeration<SearchResult> {
+    private final Iterator<SearchResult> iterator;
+
+    SearchResults(List<SearchResult> results) {
+      this.iterator = results.iterator();
+    }
+
+    @Override
+    public SearchResult next() {
+      return iterator.next();
+    }
+
+    @Override
+    public boolean hasMore() {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public void close() {
+      // nothing to do
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public SearchResult nextElement() {
+      return iterator.next();
+    }
+  }
+
+  /**
+   * State shared by the calling thread, which searches this server, and the thread which searches the alternate server.
+   */
+  private static final class Hedging {
+    private final Thread caller;
+    private final CompletableFuture<NamingEnumeration<SearchResult>> hedgeResult = new CompletableFuture<>();
+    private boolean primaryRunning = true;
+    private boolean started;
+    private boolean aborted;
+
+    Hedging(Thread caller) {
+      this.caller = caller;
+    }
+
+    /**
+     * @return false if search of this server already completed, so that alternate server doesn't need to be searched
+     */
+    synchronized boolean start() {
+      started = primaryRunning;
+      return started;
+    }
+
+    synchronized boolean isStarted() {
+      return started;
+    }
+
+    synchronized boolean isAborted() {
+      return aborted;
+    }
+
+    void hedgeDone(NamingEnumeration<SearchResult> result) {
+      hedgeResult.complete(result);
+      synchronized (this) {
+        // Interrupted only while searching, so that interruption never leaks to what the calling thread does next
+        if (primaryRunning) {
+          aborted = true;
+          caller.interrupt();
+        }
+      }
+    }
+
+    void hedgeFailed(Exception e) {
+      hedgeResult.completeExceptionally(e);
+    }
+
+    /**
+     * Called by the calling thread once search of this server completed or failed.
+     */
+    synchronized void primaryDone() {
+      primaryRunning = false;
+      if (aborted) {
+        // Clears interruption caused by the alternate server
+        Thread.interrupted();
+      }
+    }
+
+    /**
+     * @param failure failure of the search of this server, thrown if search of the alternate server fails too
+     */
+    NamingEnumeration<SearchResult> awaitHedge(NamingException failure) throws NamingException {
+      try {
+        return hedgeResult.get();
+      } catch (ExecutionException e) {
+        throw failure;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw failure;
+      }
+    }
+  }
+
 }
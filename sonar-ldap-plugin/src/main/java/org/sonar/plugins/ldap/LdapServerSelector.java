@@ -0,0 +1,121 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Decides in which order LDAP servers are queried for a user.
+ * Can remember on which server each login was last resolved, so that this server is queried first next time.
+ * Servers whose recently loaded {@link LdapKnownLogins} definitely don't contain a login are not queried, so that accounts
+ * created since then are unknown until logins are refreshed, which takes at most twice {@code <prefix>.loginFilter.refreshInterval}.
+ * Servers whose logins are older are queried after the others.
+ */
+public class LdapServerSelector {
+
+  private static final Logger LOG = Loggers.get(LdapServerSelector.class);
+
+  private final Map<String, LdapContextFactory> contextFactories;
+  private final LdapCache<String, String> affinity;
+  private final Map<String, LdapKnownLogins> knownLogins;
+
+  public LdapServerSelector(Map<String, LdapContextFactory> contextFactories) {
+    this(contextFactories, 0);
+  }
+
+  public LdapServerSelector(Map<String, LdapContextFactory> contextFactories, int affinityCacheSize) {
+    this(contextFactories, affinityCacheSize, Collections.emptyMap());
+  }
+
+  /**
+   * @param affinityCacheSize maximum number of logins for which server is remembered, or 0 to disable
+   * @param knownLogins logins of servers, for which they are loaded
+   */
+  public LdapServerSelector(Map<String, LdapContextFactory> contextFactories, int affinityCacheSize, Map<String, LdapKnownLogins> knownLogins) {
+    this.contextFactories = contextFactories;
+    this.affinity = affinityCacheSize > 0 ? new LdapCache<>(affinityCacheSize, 0) : null;
+    this.knownLogins = knownLogins;
+  }
+
+  /**
+   * @return keys of servers in configured order, except that server on which login was last resolved is queried first
+   * when available, servers which don't know the login and servers known to be unavailable are queried last,
+   * and servers which circuit breaker is open or which recently loaded logins reject the login are skipped
+   */
+  public List<String> select(String login, Collection<String> serverKeys) {
+    String lastServerKey = affinity != null ? affinity.get(login) : null;
+    List<String> available = new ArrayList<>(serverKeys.size());
+    List<String> unknownLogin = new ArrayList<>();
+    List<String> unavailable = new ArrayList<>();
+    for (String serverKey : serverKeys) {
+      LdapContextFactory contextFactory = contextFactories.get(serverKey);
+      if (contextFactory != null && contextFactory.isCircuitBreakerOpen()) {
+        LOG.debug("Skipping LDAP server {}, because its circuit breaker is open", serverKey);
+      } else if (!serverKey.equals(lastServerKey) && rejects(serverKey, login)) {
+        // Unless login was resolved on this server since its logins were loaded
+        LOG.debug("Skipping LDAP server {}, because it doesn't know login {}", serverKey, login);
+      } else if (contextFactory != null && !contextFactory.isAvailable()) {
+        unavailable.add(serverKey);
+      } else if (!mightContain(serverKey, login)) {
+        unknownLogin.add(serverKey);
+      } else {
+        available.add(serverKey);
+      }
+    }
+    if (lastServerKey != null && (available.remove(lastServerKey) || unknownLogin.remove(lastServerKey))) {
+      available.add(0, lastServerKey);
+    }
+    available.addAll(unknownLogin);
+    available.addAll(unavailable);
+    return available;
+  }
+
+  /**
+   * @return false if logins loaded for server definitely don't contain login, true otherwise
+   */
+  public boolean mightContain(String serverKey, String login) {
+    LdapKnownLogins logins = knownLogins.get(serverKey);
+    return logins == null || logins.mightContain(login);
+  }
+
+  /**
+   * @return true if logins recently loaded for server definitely don't contain login, false otherwise
+   */
+  public boolean rejects(String serverKey, String login) {
+    LdapKnownLogins logins = knownLogins.get(serverKey);
+    return logins != null && logins.rejects(login);
+  }
+
+  /**
+   * Remembers server on which login was resolved.
+   */
+  public void resolved(String login, String serverKey) {
+    if (affinity != null) {
+      affinity.put(login, serverKey);
+    }
+  }
+
+}
@@ -22,7 +22,16 @@ package org.sonar.plugins.ldap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import org.apache.commons.lang.StringUtils;
+import org.sonar.api.Startable;
 import org.sonar.api.config.Settings;
 import org.sonar.api.server.ServerSide;
 import org.sonar.api.utils.log.Logger;
@@ -34,18 +43,41 @@ import org.sonar.plugins.ldap.LdapAutodiscovery.LdapSrvRecord;
  * This class is also responsible to cope with multiple ldap servers.
  */
 @ServerSide
-public class LdapSettingsManager {
+public class LdapSettingsManager implements Startable {
 
   private static final Logger LOG = Loggers.get(LdapSettingsManager.class);
 
   private static final String LDAP_SERVERS_PROPERTY = "ldap.servers";
   private static final String LDAP_PROPERTY_PREFIX = "ldap";
   private static final String DEFAULT_LDAP_SERVER_KEY = "<default>";
+  private static final String CONNECTION_TEST_TIMEOUT_PROPERTY = "ldap.connectionTestTimeout";
+  private static final String PARALLEL_LOOKUP_THREADS_PROPERTY = "ldap.parallelLookupThreads";
+  private static final String AFFINITY_CACHE_SIZE_PROPERTY = "ldap.affinityCacheSize";
+  private static final String AUTODISCOVERY_REFRESH_INTERVAL_PROPERTY = "ldap.autodiscovery.refreshInterval";
+  private static final long DEFAULT_AUTODISCOVERY_REFRESH_INTERVAL = 3_600_000L;
+  private static final String AUTODISCOVERY_SITE_PROPERTY = "ldap.autodiscovery.site";
+  private static final String USER_CACHE_SIZE_PROPERTY = "ldap.userCache.size";
+  private static final String USER_CACHE_TTL_PROPERTY = "ldap.userCache.ttl";
+  private static final long DEFAULT_USER_CACHE_TTL = 600_000L;
+  private static final String UNKNOWN_USER_CACHE_SIZE_PROPERTY = "ldap.unknownUserCache.size";
+  private static final String UNKNOWN_USER_CACHE_TTL_PROPERTY = "ldap.unknownUserCache.ttl";
+  private static final long DEFAULT_UNKNOWN_USER_CACHE_TTL = 60_000L;
+  private static final String GROUPS_CACHE_SIZE_PROPERTY = "ldap.groupsCache.size";
+  private static final String GROUPS_CACHE_SOFT_TTL_PROPERTY = "ldap.groupsCache.softTtl";
+  private static final String GROUPS_CACHE_HARD_TTL_PROPERTY = "ldap.groupsCache.hardTtl";
+  private static final long DEFAULT_GROUPS_CACHE_SOFT_TTL = 60_000L;
+  private static final long DEFAULT_GROUPS_CACHE_HARD_TTL = 3_600_000L;
   private final Settings settings;
   private final LdapAutodiscovery ldapAutodiscovery;
   private Map<String, LdapUserMapping> userMappings = null;
   private Map<String, LdapGroupMapping> groupMappings = null;
   private Map<String, LdapContextFactory> contextFactories;
+  private ExecutorService lookupExecutor;
+  private LdapServerSelector serverSelector;
+  private LdapUserLookup userLookup;
+  private Map<String, LdapKnownLogins> knownLogins;
+  private ExecutorService groupsRefreshExecutor;
+  private LdapGroupsCache groupsCache;
 
   /**
    * Create an instance of the settings manager.
@@ -57,6 +89,126 @@ public class LdapSettingsManager {
     this.ldapAutodiscovery = ldapAutodiscovery;
   }
 
+  @Override
+  public void start() {
+    // Context factories are created lazily
+  }
+
+  /**
+   * Closes pooled connections and stops background tasks of all context factories.
+   */
+  @Override
+  public void stop() {
+    if (lookupExecutor != null) {
+      lookupExecutor.shutdownNow();
+      lookupExecutor = null;
+    }
+    if (groupsRefreshExecutor != null) {
+      groupsRefreshExecutor.shutdownNow();
+      groupsRefreshExecutor = null;
+    }
+    if (knownLogins != null) {
+      for (LdapKnownLogins logins : knownLogins.values()) {
+        logins.stop();
+      }
+    }
+    if (contextFactories != null) {
+      for (LdapContextFactory contextFactory : contextFactories.values()) {
+        contextFactory.close();
+      }
+    }
+  }
+
+  /**
+   * @return maximum time in milliseconds to wait for connection tests at startup, or 0 to wait until they complete
+   */
+  public long getConnectionTestTimeout() {
+    return settings.getLong(CONNECTION_TEST_TIMEOUT_PROPERTY);
+  }
+
+  /**
+   * Executor used to search users on all servers concurrently. Enabled by property {@code ldap.parallelLookupThreads},
+   * which defines the number of threads. When all threads are busy, searches run in the calling thread.
+   *
+   * @return executor, or null if searches should be sequential
+   */
+  @CheckForNull
+  public synchronized ExecutorService getLookupExecutor() {
+    int threads = settings.getInt(PARALLEL_LOOKUP_THREADS_PROPERTY);
+    if (lookupExecutor == null && threads > 0) {
+      // Rejected searches run in the calling thread, even after shutdown, so that they are never lost
+      lookupExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>(),
+        new LdapThreadFactory("lookup"), (task, executor) -> task.run());
+    }
+    return lookupExecutor;
+  }
+
+  /**
+   * Selector shared by authenticator and providers, so that server on which a login was resolved is remembered
+   * across requests. Number of remembered logins is defined by property {@code ldap.affinityCacheSize}, 0 disables it.
+   * Servers whose loaded logins don't contain a login are queried last.
+   */
+  public synchronized LdapServerSelector getServerSelector() {
+    if (serverSelector == null) {
+      serverSelector = new LdapServerSelector(getContextFactories(), settings.getInt(AFFINITY_CACHE_SIZE_PROPERTY), getKnownLogins());
+    }
+    return serverSelector;
+  }
+
+  /**
+   * Lookup shared by authenticator and providers, so that a single search returns attributes needed by all of them.
+   * Found users are kept across requests when property {@code ldap.userCache.size} is set, during {@code ldap.userCache.ttl}
+   * milliseconds (10 minutes by default). Similarly logins without entry are kept when property {@code ldap.unknownUserCache.size}
+   * is set, during {@code ldap.unknownUserCache.ttl} milliseconds (1 minute by default).
+   */
+  public synchronized LdapUserLookup getUserLookup() {
+    if (userLookup == null) {
+      long userCacheTtl = settings.hasKey(USER_CACHE_TTL_PROPERTY) ? settings.getLong(USER_CACHE_TTL_PROPERTY) : DEFAULT_USER_CACHE_TTL;
+      long unknownUserCacheTtl = settings.hasKey(UNKNOWN_USER_CACHE_TTL_PROPERTY) ? settings.getLong(UNKNOWN_USER_CACHE_TTL_PROPERTY) : DEFAULT_UNKNOWN_USER_CACHE_TTL;
+      userLookup = new LdapUserLookup(getContextFactories(), getUserMappings(), getGroupMappings(), settings.getInt(USER_CACHE_SIZE_PROPERTY), userCacheTtl,
+        settings.getInt(UNKNOWN_USER_CACHE_SIZE_PROPERTY), unknownUserCacheTtl);
+    }
+    return userLookup;
+  }
+
+  /**
+   * Cache of groups shared by requests, enabled by property {@code ldap.groupsCache.size}, which defines the maximum number of users.
+   * Groups are refreshed in background once older than {@code ldap.groupsCache.softTtl} milliseconds (1 minute by default),
+   * and searched again while the caller waits once older than {@code ldap.groupsCache.hardTtl} milliseconds (1 hour by default).
+   *
+   * @return cache, or null if groups should be searched on each login
+   */
+  @CheckForNull
+  public synchronized LdapGroupsCache getGroupsCache() {
+    int size = settings.getInt(GROUPS_CACHE_SIZE_PROPERTY);
+    if (groupsCache == null && size > 0) {
+      long softTtl = settings.hasKey(GROUPS_CACHE_SOFT_TTL_PROPERTY) ? settings.getLong(GROUPS_CACHE_SOFT_TTL_PROPERTY) : DEFAULT_GROUPS_CACHE_SOFT_TTL;
+      long hardTtl = settings.hasKey(GROUPS_CACHE_HARD_TTL_PROPERTY) ? settings.getLong(GROUPS_CACHE_HARD_TTL_PROPERTY) : DEFAULT_GROUPS_CACHE_HARD_TTL;
+      groupsRefreshExecutor = Executors.newSingleThreadExecutor(new LdapThreadFactory("groups-refresh"));
+      groupsCache = new LdapGroupsCache(size, softTtl, hardTtl, groupsRefreshExecutor);
+    }
+    return groupsCache;
+  }
+
+  /**
+   * Logins of servers for which property {@code ldap.<key>.loginFilter.refreshInterval} is set, which are loaded in background
+   * once started.
+   */
+  public synchronized Map<String, LdapKnownLogins> getKnownLogins() {
+    if (knownLogins == null) {
+      knownLogins = new LinkedHashMap<>();
+      for (Map.Entry<String, LdapUserMapping> entry : getUserMappings().entrySet()) {
+        String serverKey = entry.getKey();
+        String prefix = DEFAULT_LDAP_SERVER_KEY.equals(serverKey) ? LDAP_PROPERTY_PREFIX : (LDAP_PROPERTY_PREFIX + "." + serverKey);
+        LdapKnownLogins logins = new LdapKnownLogins(settings, prefix, getContextFactories().get(serverKey), entry.getValue());
+        if (logins.isEnabled()) {
+          knownLogins.put(serverKey, logins);
+        }
+      }
+    }
+    return knownLogins;
+  }
+
   /**
    * Get all the @link{LdapUserMapping}s available in the settings.
    *
@@ -153,19 +305,20 @@ public class LdapSettingsManager {
     String ldapUrl = settings.getString(ldapUrlKey);
     if (ldapUrl == null && realm != null) {
       LOG.warn("Auto-discovery feature is deprecated, please use '{}' to specify LDAP url", ldapUrlKey);
-      List<LdapSrvRecord> ldapServers = ldapAutodiscovery.getLdapServers(realm);
+      Supplier<List<LdapSrvRecord>> discovery = discovery(realm, settings.getString(AUTODISCOVERY_SITE_PROPERTY));
+      List<LdapSrvRecord> ldapServers = discovery.get();
       if (ldapServers.isEmpty()) {
         throw new LdapException(String.format("The property '%s' is empty and SonarQube is not able to auto-discover any LDAP server.", ldapUrlKey));
       }
-      int index = 1;
       for (LdapSrvRecord ldapSrvRecord : ldapServers) {
-        if (StringUtils.isNotBlank(ldapSrvRecord.getServerUrl())) {
-          LOG.info("Detected server: {}", ldapSrvRecord.getServerUrl());
-          LdapContextFactory contextFactory = new LdapContextFactory(settings, LDAP_PROPERTY_PREFIX, ldapSrvRecord.getServerUrl());
-          contextFactories.put(DEFAULT_LDAP_SERVER_KEY + index, contextFactory);
-          index++;
-        }
+        LOG.info("Detected server: {}", ldapSrvRecord);
       }
+      // Discovered servers are replicas of the same directory, so that they share mappings
+      long refreshInterval = settings.hasKey(AUTODISCOVERY_REFRESH_INTERVAL_PROPERTY) ? settings.getLong(AUTODISCOVERY_REFRESH_INTERVAL_PROPERTY)
+        : DEFAULT_AUTODISCOVERY_REFRESH_INTERVAL;
+      LdapContextFactory contextFactory = LdapContextFactory.forSrvRecords(settings, LDAP_PROPERTY_PREFIX, ldapServers,
+        discovery, refreshInterval);
+      contextFactories.put(DEFAULT_LDAP_SERVER_KEY, contextFactory);
     } else {
       if (StringUtils.isBlank(ldapUrl)) {
         throw new LdapException(String.format("The property '%s' is empty and no realm configured to try auto-discovery.", ldapUrlKey));
@@ -175,6 +328,16 @@ public class LdapSettingsManager {
     }
   }
 
+  /**
+   * When Active Directory site is set by property {@code ldap.autodiscovery.site}, servers of this site are preferred.
+   */
+  private Supplier<List<LdapSrvRecord>> discovery(String realm, @Nullable String site) {
+    if (StringUtils.isBlank(site)) {
+      return () -> ldapAutodiscovery.getLdapServers(realm);
+    }
+    return () -> ldapAutodiscovery.getLdapServers(realm, site);
+  }
+
   private void initMultiLdapConfiguration(String[] serverKeys) {
     if (settings.hasKey("ldap.url") || settings.hasKey("ldap.realm")) {
       throw new LdapException("When defining multiple LDAP servers with the property '" + LDAP_SERVERS_PROPERTY + "', "
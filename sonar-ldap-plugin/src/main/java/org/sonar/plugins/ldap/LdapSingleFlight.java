@@ -0,0 +1,129 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+
+/**
+ * Coalesces concurrent identical calls, so that callers arriving while a call is in flight share its result
+ * instead of sending the same request to the LDAP server.
+ */
+public class LdapSingleFlight<K, V> {
+
+  private final ConcurrentMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+  private final AtomicLong sharedCount = new AtomicLong();
+
+  @FunctionalInterface
+  public interface Call<V> {
+    V call() throws NamingException;
+  }
+
+  /**
+   * Performs call, or waits for the identical call in flight, and returns its result or throws its exception.
+   * When the call in flight is interrupted, which concerns only its own caller, a waiting caller performs the call instead.
+   *
+   * @throws NamingException if call fails
+   */
+  public V execute(K key, Call<V> call) throws NamingException {
+    while (true) {
+      CompletableFuture<V> future = new CompletableFuture<>();
+      CompletableFuture<V> pending = calls.putIfAbsent(key, future);
+      if (pending == null) {
+        return lead(key, future, call);
+      }
+      sharedCount.incrementAndGet();
+      try {
+        return await(pending);
+      } catch (AbandonedCallException e) {
+        // retry, possibly as the new leader
+      }
+    }
+  }
+
+  private V lead(K key, CompletableFuture<V> future, Call<V> call) throws NamingException {
+    try {
+      V result = call.call();
+      future.complete(result);
+      return result;
+    } catch (NamingException | RuntimeException e) {
+      future.completeExceptionally(isInterruption(e) ? new AbandonedCallException() : e);
+      throw e;
+    } finally {
+      calls.remove(key, future);
+      if (!future.isDone()) {
+        // Error thrown by call, which waiting callers must not wait forever for
+        future.completeExceptionally(new LdapException("Unable to perform call for " + key));
+      }
+    }
+  }
+
+  private static boolean isInterruption(Exception e) {
+    return e instanceof InterruptedNamingException || Thread.currentThread().isInterrupted();
+  }
+
+  private static <V> V await(CompletableFuture<V> pending) throws NamingException {
+    try {
+      return pending.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof NamingException) {
+        throw (NamingException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new LdapException("Unable to perform call", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      NamingException namingException = new InterruptedNamingException("Interrupted while waiting for identical call");
+      namingException.initCause(e);
+      throw namingException;
+    }
+  }
+
+  /**
+   * @return number of calls, which shared the result of an identical call in flight
+   */
+  public long getSharedCount() {
+    return sharedCount.get();
+  }
+
+  /**
+   * @return number of calls in flight
+   */
+  public int getPendingCount() {
+    return calls.size();
+  }
+
+  /**
+   * Given to waiting callers instead of the interruption of the leading caller.
+   */
+  private static final class AbandonedCallException extends RuntimeException {
+    AbandonedCallException() {
+      super("Call abandoned by interrupted caller", null, false, false);
+    }
+  }
+
+}
@@ -0,0 +1,292 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Searches user entries. Entries found during an HTTP request are kept as an attribute of this request,
+ * so that authenticator and providers search each user only once per server during a login.
+ * By default a search returns exactly the attributes needed by all of them: email, real name, and attributes
+ * required by group mapping.
+ * <p>
+ * Found entries can also be kept across requests in a bounded cache, so that DN of users is not searched on each login.
+ * Likewise logins without entry can be remembered for a short time, so that repeated unknown logins don't search
+ * the directory each time.
+ * Concurrent identical searches, for example when the same account logs in from many threads, share a single search.
+ */
+public class LdapUserLookup {
+
+  private static final String REQUEST_ATTRIBUTE = LdapUserLookup.class.getName();
+
+  private final Map<String, LdapContextFactory> contextFactories;
+  private final Map<String, LdapUserMapping> userMappings;
+  private final Map<String, String[]> userAttributes = new HashMap<>();
+  private final LdapCache<List<String>, Entry> userCache;
+  private final LdapCache<List<String>, Boolean> unknownUserCache;
+  private final LdapSingleFlight<List<String>, SearchResult> searches = new LdapSingleFlight<>();
+
+  public LdapUserLookup(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings) {
+    this(contextFactories, userMappings, Collections.emptyMap());
+  }
+
+  public LdapUserLookup(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    Map<String, LdapGroupMapping> groupMappings) {
+    this(contextFactories, userMappings, groupMappings, 0, 0);
+  }
+
+  public LdapUserLookup(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    Map<String, LdapGroupMapping> groupMappings, int userCacheSize, long userCacheTimeToLive) {
+    this(contextFactories, userMappings, groupMappings, userCacheSize, userCacheTimeToLive, 0, 0);
+  }
+
+  /**
+   * @param userCacheSize maximum number of entries kept across requests, or 0 to disable this cache
+   * @param userCacheTimeToLive in milliseconds after which a kept entry is searched again
+   * @param unknownUserCacheSize maximum number of logins without entry kept across requests, or 0 to disable this cache
+   * @param unknownUserCacheTimeToLive in milliseconds after which a login without entry is searched again
+   */
+  public LdapUserLookup(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    Map<String, LdapGroupMapping> groupMappings, int userCacheSize, long userCacheTimeToLive, int unknownUserCacheSize, long unknownUserCacheTimeToLive) {
+    this.contextFactories = contextFactories;
+    this.userMappings = userMappings;
+    this.userCache = userCacheSize > 0 ? new LdapCache<>(userCacheSize, userCacheTimeToLive) : null;
+    this.unknownUserCache = unknownUserCacheSize > 0 ? new LdapCache<>(unknownUserCacheSize, unknownUserCacheTimeToLive) : null;
+    for (Map.Entry<String, LdapUserMapping> entry : userMappings.entrySet()) {
+      Set<String> attributes = new LinkedHashSet<>();
+      attributes.add(entry.getValue().getEmailAttribute());
+      attributes.add(entry.getValue().getRealNameAttribute());
+      LdapGroupMapping groupMapping = groupMappings.get(entry.getKey());
+      if (groupMapping != null) {
+        attributes.addAll(Arrays.asList(groupMapping.getRequiredUserAttributes()));
+      }
+      // Pseudo attribute, which is provided by the name of the entry
+      attributes.remove("dn");
+      userAttributes.put(entry.getKey(), attributes.toArray(new String[attributes.size()]));
+    }
+  }
+
+  /**
+   * @return attributes needed by authenticator and providers, which are returned by {@link #find(HttpServletRequest, String, String)}
+   */
+  public String[] getUserAttributes(String serverKey) {
+    return userAttributes.get(serverKey);
+  }
+
+  /**
+   * Searches user with attributes needed by authenticator and providers.
+   *
+   * @param request current HTTP request, or null if entry should not be shared
+   * @return entry of user, or null if not found
+   * @throws NamingException if unable to perform search
+   */
+  @CheckForNull
+  public SearchResult find(@Nullable HttpServletRequest request, String serverKey, String login) throws NamingException {
+    return find(request, serverKey, login, getUserAttributes(serverKey));
+  }
+
+  /**
+   * @param request current HTTP request, or null if entry should not be shared
+   * @param attributes attributes to return, or null for all user attributes
+   * @return entry of user, or null if not found
+   * @throws NamingException if unable to perform search
+   */
+  @CheckForNull
+  public SearchResult find(@Nullable HttpServletRequest request, String serverKey, String login, @Nullable String[] attributes) throws NamingException {
+    Entry entry = getCached(request, serverKey, login, attributes);
+    if (entry != null) {
+      return entry.result;
+    }
+    SearchResult result = search(serverKey, login, attributes);
+    cache(request, serverKey, login, attributes, result);
+    return result;
+  }
+
+  /**
+   * Searches user without sharing the entry, so that it can be called from any thread.
+   * Concurrent calls with the same arguments share the same search.
+   */
+  @CheckForNull
+  public SearchResult search(String serverKey, String login, @Nullable String[] attributes) throws NamingException {
+    List<String> key = Arrays.asList(serverKey, login, attributes == null ? null : String.join(",", attributes));
+    return searches.execute(key, () -> {
+      LdapSearch search = userMappings.get(serverKey).createSearch(contextFactories.get(serverKey), login);
+      if (attributes != null) {
+        search.returns(attributes);
+      }
+      return search.findUnique();
+    });
+  }
+
+  /**
+   * @return concurrent searches, which counts searches shared by identical calls
+   */
+  public LdapSingleFlight<List<String>, SearchResult> getSearches() {
+    return searches;
+  }
+
+  /**
+   * @return whether an entry providing specified attributes was already found during request, or is kept in cache
+   */
+  public boolean isCached(@Nullable HttpServletRequest request, String serverKey, String login, @Nullable String[] attributes) {
+    return getCached(request, serverKey, login, attributes) != null;
+  }
+
+  /**
+   * @return whether an entry of user is kept in cache across requests, so that it might be outdated
+   */
+  public boolean isKept(String serverKey, String login) {
+    return userCache != null && userCache.contains(Arrays.asList(serverKey, login));
+  }
+
+  /**
+   * Shares result of a search performed by {@link #search(String, String, String[])} with following lookups of request,
+   * and keeps it in cache.
+   */
+  public void cache(@Nullable HttpServletRequest request, String serverKey, String login, @Nullable String[] attributes, @Nullable SearchResult result) {
+    List<String> key = Arrays.asList(serverKey, login);
+    Entry entry = new Entry(result, attributes);
+    Map<List<String>, Entry> entries = getEntries(request);
+    if (entries != null) {
+      entries.put(key, entry);
+    }
+    if (userCache != null && result != null) {
+      userCache.put(key, entry);
+    }
+    if (unknownUserCache != null && result == null) {
+      unknownUserCache.put(key, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Removes user from cache, for example when its DN might be outdated because bind failed.
+   */
+  public void invalidate(String serverKey, String login) {
+    List<String> key = Arrays.asList(serverKey, login);
+    if (userCache != null) {
+      userCache.remove(key);
+    }
+    if (unknownUserCache != null) {
+      unknownUserCache.remove(key);
+    }
+  }
+
+  /**
+   * @return cache of entries kept across requests, or null if disabled
+   */
+  @CheckForNull
+  public LdapCache<List<String>, ?> getUserCache() {
+    return userCache;
+  }
+
+  /**
+   * @return cache of logins without entry kept across requests, or null if disabled
+   */
+  @CheckForNull
+  public LdapCache<List<String>, ?> getUnknownUserCache() {
+    return unknownUserCache;
+  }
+
+  @CheckForNull
+  private Entry getCached(@Nullable HttpServletRequest request, String serverKey, String login, @Nullable String[] attributes) {
+    List<String> key = Arrays.asList(serverKey, login);
+    Map<List<String>, Entry> entries = getEntries(request);
+    Entry entry = entries != null ? entries.get(key) : null;
+    if (entry == null && userCache != null) {
+      entry = userCache.get(key);
+    }
+    if (entry == null && unknownUserCache != null && unknownUserCache.get(key) != null) {
+      entry = new Entry(null, null);
+    }
+    return entry != null && entry.provides(attributes) ? entry : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  @CheckForNull
+  private static Map<List<String>, Entry> getEntries(@Nullable HttpServletRequest request) {
+    if (request == null) {
+      return null;
+    }
+    Map<List<String>, Entry> entries = (Map<List<String>, Entry>) request.getAttribute(REQUEST_ATTRIBUTE);
+    if (entries == null) {
+      entries = new HashMap<>();
+      request.setAttribute(REQUEST_ATTRIBUTE, entries);
+    }
+    return entries;
+  }
+
+  private static final class Entry {
+    private final SearchResult result;
+    private final String[] attributes;
+
+    Entry(@Nullable SearchResult result, @Nullable String[] attributes) {
+      this.result = result;
+      this.attributes = attributes;
+    }
+
+    /**
+     * Attributes are provided if they were requested, or if they are present in the entry.
+     * Note that search of all user attributes doesn't return operational ones, such as "memberOf" for some servers.
+     */
+    boolean provides(@Nullable String[] requested) {
+      if (result == null) {
+        // User doesn't exist, whatever the attributes
+        return true;
+      }
+      if (requested == null) {
+        return attributes == null;
+      }
+      for (String attribute : requested) {
+        if (!wasRequested(attribute) && result.getAttributes().get(attribute) == null) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean wasRequested(String attribute) {
+      if ("dn".equals(attribute) || ContextHelper.NO_ATTRIBUTES[0].equals(attribute)) {
+        // Pseudo attribute of group mapping, which is provided by the name of the entry, or selector of no attributes
+        return true;
+      }
+      if (attributes == null) {
+        return false;
+      }
+      for (String requested : attributes) {
+        if (requested.equalsIgnoreCase(attribute)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+}
@@ -25,6 +25,7 @@ import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchResult;
+import javax.servlet.http.HttpServletRequest;
 import org.sonar.api.security.ExternalUsersProvider;
 import org.sonar.api.security.UserDetails;
 import org.sonar.api.utils.log.Logger;
@@ -38,12 +39,18 @@ import static java.lang.String.format;
 public class LdapUsersProvider extends ExternalUsersProvider {
 
   private static final Logger LOG = Loggers.get(LdapUsersProvider.class);
-  private final Map<String, LdapContextFactory> contextFactories;
   private final Map<String, LdapUserMapping> userMappings;
+  private final LdapServerSelector serverSelector;
+  private final LdapUserLookup userLookup;
 
   public LdapUsersProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings) {
-    this.contextFactories = contextFactories;
+    this(userMappings, new LdapServerSelector(contextFactories), new LdapUserLookup(contextFactories, userMappings));
+  }
+
+  public LdapUsersProvider(Map<String, LdapUserMapping> userMappings, LdapServerSelector serverSelector, LdapUserLookup userLookup) {
     this.userMappings = userMappings;
+    this.serverSelector = serverSelector;
+    this.userLookup = userLookup;
   }
 
   private static String getAttributeValue(@Nullable Attribute attribute) throws NamingException {
@@ -55,7 +62,7 @@ public class LdapUsersProvider extends ExternalUsersProvider {
 
   @Override
   public UserDetails doGetUserDetails(Context context) {
-    return getUserDetails(context.getUsername());
+    return getUserDetails(context.getUsername(), context.getRequest());
   }
 
   /**
@@ -63,6 +70,14 @@ public class LdapUsersProvider extends ExternalUsersProvider {
    * @throws LdapException if unable to retrieve details
    */
   public UserDetails getUserDetails(String username) {
+    return getUserDetails(username, null);
+  }
+
+  /**
+   * @param request current HTTP request, used to reuse user entries found by authenticator, or null
+   * @see #getUserDetails(String)
+   */
+  public UserDetails getUserDetails(String username, @Nullable HttpServletRequest request) {
     LOG.debug("Requesting details for user {}", username);
     // If there are no userMappings available, we can not retrieve user details.
     if (userMappings.isEmpty()) {
@@ -72,12 +87,10 @@ public class LdapUsersProvider extends ExternalUsersProvider {
     }
     UserDetails details = null;
     LdapException exception = null;
-    for (String serverKey : userMappings.keySet()) {
+    for (String serverKey : serverSelector.select(username, userMappings.keySet())) {
       SearchResult searchResult = null;
       try {
-        searchResult = userMappings.get(serverKey).createSearch(contextFactories.get(serverKey), username)
-          .returns(userMappings.get(serverKey).getEmailAttribute(), userMappings.get(serverKey).getRealNameAttribute())
-          .findUnique();
+        searchResult = userLookup.find(request, serverKey, username);
       } catch (NamingException e) {
         // just in case if Sonar silently swallowed exception
         LOG.debug(e.getMessage(), e);
@@ -86,6 +99,7 @@ public class LdapUsersProvider extends ExternalUsersProvider {
       if (searchResult != null) {
         try {
           details = mapUserDetails(serverKey, searchResult);
+          serverSelector.resolved(username, serverKey);
           // if no exceptions occur, we found the user and mapped his details.
           break;
         } catch (NamingException e) {
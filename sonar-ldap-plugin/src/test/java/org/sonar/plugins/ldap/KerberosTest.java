@@ -28,6 +28,9 @@ import org.sonar.api.security.Authenticator;
 import org.sonar.api.security.ExternalGroupsProvider;
 import org.sonar.plugins.ldap.server.LdapServer;
 
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.Configuration;
 import javax.servlet.http.HttpServletRequest;
 import java.io.File;
 
@@ -57,6 +60,38 @@ public class KerberosTest {
     assertThat(ldapRealm.getGroupsProvider().doGetGroups(new ExternalGroupsProvider.Context("godin", Mockito.mock(HttpServletRequest.class)))).containsOnly("sonar-users");
   }
 
+  @Test
+  public void should_not_modify_jvm_wide_configuration() {
+    Configuration previous = Configuration.getConfiguration();
+    Configuration configuration = Mockito.mock(Configuration.class);
+    Configuration.setConfiguration(configuration);
+    try {
+      LdapRealm ldapRealm = new LdapRealm(new LdapSettingsManager(configure(), new LdapAutodiscovery()));
+      ldapRealm.init();
+      assertThat(ldapRealm.doGetAuthenticator().doAuthenticate(new Authenticator.Context("Godin@EXAMPLE.ORG", "user_password", Mockito.mock(HttpServletRequest.class)))).isTrue();
+
+      assertThat(Configuration.getConfiguration()).isSameAs(configuration);
+      Mockito.verifyZeroInteractions(configuration);
+    } finally {
+      Configuration.setConfiguration(previous);
+    }
+  }
+
+  @Test
+  public void should_cache_subject_of_bind_user() throws Exception {
+    Krb5SubjectCache subjectCache = new Krb5SubjectCache("SonarQube@EXAMPLE.ORG", "bind_password", new Krb5LoginConfiguration());
+    try {
+      Subject subject = subjectCache.getSubject();
+      assertThat(subject.getPrivateCredentials(KerberosTicket.class)).isNotEmpty();
+      assertThat(subjectCache.getSubject()).isSameAs(subject);
+
+      subjectCache.invalidate();
+      assertThat(subjectCache.getSubject()).isNotSameAs(subject);
+    } finally {
+      subjectCache.close();
+    }
+  }
+
   @Test
   public void wrong_bind_password() {
     Settings settings = configure()
@@ -0,0 +1,128 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.spi.LoginModule;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class Krb5SubjectCacheTest {
+
+  private static final long TICKET_LIFETIME = 2_000L;
+
+  private static final AtomicInteger logins = new AtomicInteger();
+  private static volatile CountDownLatch renewalStarted;
+  private static volatile CountDownLatch renewalAllowed;
+
+  @Test
+  public void should_not_block_callers_during_renewal() throws Exception {
+    logins.set(0);
+    renewalStarted = new CountDownLatch(1);
+    renewalAllowed = new CountDownLatch(1);
+    Krb5SubjectCache subjectCache = new Krb5SubjectCache("SonarQube@EXAMPLE.ORG", "bind_password", new TestConfiguration());
+    try {
+      Subject subject = subjectCache.getSubject();
+      assertThat(logins.get()).isEqualTo(1);
+
+      // renewal in background, which starts before expiry of ticket, is blocked on KDC
+      assertThat(renewalStarted.await(TICKET_LIFETIME, TimeUnit.MILLISECONDS)).isTrue();
+      long start = System.currentTimeMillis();
+      assertThat(subjectCache.getSubject()).isSameAs(subject);
+      assertThat(System.currentTimeMillis() - start).isLessThan(200);
+
+      renewalAllowed.countDown();
+      while (subjectCache.getSubject() == subject) {
+        Thread.sleep(10);
+      }
+      assertThat(logins.get()).isEqualTo(2);
+    } finally {
+      renewalAllowed.countDown();
+      subjectCache.close();
+    }
+  }
+
+  private static class TestConfiguration extends Configuration {
+    @Override
+    public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+      return new AppConfigurationEntry[] {
+        new AppConfigurationEntry(TestLoginModule.class.getName(), AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, Collections.emptyMap())
+      };
+    }
+  }
+
+  /**
+   * Issues tickets of short lifetime, and blocks renewal until allowed.
+   */
+  public static class TestLoginModule implements LoginModule {
+    private Subject subject;
+
+    @Override
+    public void initialize(Subject subject, CallbackHandler callbackHandler, Map<String, ?> sharedState, Map<String, ?> options) {
+      this.subject = subject;
+    }
+
+    @Override
+    public boolean login() {
+      if (logins.incrementAndGet() > 1) {
+        renewalStarted.countDown();
+        try {
+          renewalAllowed.await(TICKET_LIFETIME, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean commit() {
+      long now = System.currentTimeMillis();
+      KerberosPrincipal client = new KerberosPrincipal("SonarQube@EXAMPLE.ORG");
+      KerberosPrincipal server = new KerberosPrincipal("krbtgt/EXAMPLE.ORG@EXAMPLE.ORG");
+      subject.getPrivateCredentials().add(new KerberosTicket(new byte[] {0}, client, server, new byte[] {0}, 1, new boolean[32],
+        new Date(now), new Date(now), new Date(now + TICKET_LIFETIME), null, null));
+      return true;
+    }
+
+    @Override
+    public boolean abort() {
+      return true;
+    }
+
+    @Override
+    public boolean logout() {
+      return true;
+    }
+  }
+
+}
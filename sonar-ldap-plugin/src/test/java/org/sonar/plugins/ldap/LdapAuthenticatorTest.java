@@ -19,8 +19,16 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
 import org.junit.ClassRule;
 import org.junit.Test;
+import org.sonar.api.config.Settings;
 import org.sonar.plugins.ldap.server.LdapServer;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -90,6 +98,67 @@ public class LdapAuthenticatorTest {
     assertThat(authenticator.authenticate("robby", "wrong")).isFalse();
   }
 
+  @Test
+  public void testSimpleMultiLdapWithParallelLookup() {
+    Settings settings = LdapSettingsFactory.generateAuthenticationSettings(exampleServer, infosupportServer, LdapContextFactory.AUTH_METHOD_SIMPLE)
+      .setProperty("ldap.parallelLookupThreads", 1);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    ExecutorService lookupExecutor = settingsManager.getLookupExecutor();
+    assertThat(lookupExecutor).isNotNull();
+    LdapAuthenticator authenticator = new LdapAuthenticator(settingsManager.getContextFactories(), settingsManager.getUserMappings(),
+      settingsManager.getServerSelector(), settingsManager.getUserLookup(), lookupExecutor);
+
+    try {
+      assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+      assertThat(authenticator.authenticate("godin", "wrong")).isFalse();
+
+      assertThat(authenticator.authenticate("tester", "secret2")).isTrue();
+      assertThat(authenticator.authenticate("tester", "wrong")).isFalse();
+
+      assertThat(authenticator.authenticate("notfound", "wrong")).isFalse();
+
+      assertThat(authenticator.authenticate("robby", "secret1")).isTrue();
+      assertThat(authenticator.authenticate("robby", "wrong")).isFalse();
+    } finally {
+      settingsManager.stop();
+    }
+    // still works, but sequentially
+    assertThat(authenticator.authenticate("robby", "secret1")).isTrue();
+  }
+
+  @Test
+  public void should_not_interrupt_losing_lookups() throws Exception {
+    Settings settings = LdapSettingsFactory.generateAuthenticationSettings(exampleServer, infosupportServer, LdapContextFactory.AUTH_METHOD_SIMPLE)
+      .setProperty("ldap.parallelLookupThreads", 2);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    CountDownLatch slowLookupDone = new CountDownLatch(1);
+    AtomicBoolean interrupted = new AtomicBoolean();
+    LdapUserLookup userLookup = new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings()) {
+      @Override
+      public SearchResult search(String serverKey, String login, @Nullable String[] attributes) throws NamingException {
+        if ("infosupport".equals(serverKey)) {
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException e) {
+            interrupted.set(true);
+          } finally {
+            slowLookupDone.countDown();
+          }
+        }
+        return super.search(serverKey, login, attributes);
+      }
+    };
+    LdapAuthenticator authenticator = new LdapAuthenticator(settingsManager.getContextFactories(), settingsManager.getUserMappings(),
+      settingsManager.getServerSelector(), userLookup, settingsManager.getLookupExecutor());
+    try {
+      assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+      assertThat(slowLookupDone.await(5, TimeUnit.SECONDS)).isTrue();
+      assertThat(interrupted.get()).isFalse();
+    } finally {
+      settingsManager.stop();
+    }
+  }
+
   @Test
   public void testSasl() {
     LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateAuthenticationSettings(exampleServer, null, LdapContextFactory.AUTH_METHOD_CRAM_MD5), new LdapAutodiscovery());
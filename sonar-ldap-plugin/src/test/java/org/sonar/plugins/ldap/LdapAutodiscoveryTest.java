@@ -21,13 +21,19 @@ package org.sonar.plugins.ldap;
 
 import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.sonar.api.config.Settings;
 import org.sonar.plugins.ldap.LdapAutodiscovery.LdapSrvRecord;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -90,4 +96,55 @@ public class LdapAutodiscoveryTest {
           "ldap://ldap5.example.org:389"));
   }
 
+  @Test
+  public void should_keep_servers_of_same_priority_and_weight() throws NamingException {
+    BasicAttribute srv = new BasicAttribute("srv");
+    srv.add("0 100 389 dc2.example.org.");
+    srv.add("0 100 389 dc1.example.org.");
+    srv.add("0 100 389 dc3.example.org.");
+    srv.add("0 100 389 dc1.example.org.");
+    Attributes attributes = new BasicAttributes(true);
+    attributes.put(srv);
+    DirContext context = mock(DirContext.class);
+    when(context.getAttributes(Mockito.eq("dns:/_ldap._tcp.example.org"), Mockito.<String[]>anyObject())).thenReturn(attributes);
+
+    List<LdapSrvRecord> ldapServers = new LdapAutodiscovery().getLdapServers(context, "example.org");
+    assertThat(ldapServers).extracting("serverUrl")
+      .containsExactly("ldap://dc1.example.org:389", "ldap://dc2.example.org:389", "ldap://dc3.example.org:389");
+    LdapContextFactory contextFactory = LdapContextFactory.forSrvRecords(new Settings(), "ldap", ldapServers, Collections::emptyList, 0);
+    assertThat(contextFactory.getReplicas()).hasSize(3);
+  }
+
+  @Test
+  public void should_prefer_servers_of_site() throws NamingException {
+    DirContext context = mockSrvRecords("dns:/_ldap._tcp.Frankfurt._sites.example.org", "0 100 389 fra.example.org.");
+    mockSrvRecords(context, "dns:/_ldap._tcp.example.org", "0 100 389 sin.example.org.");
+
+    assertThat(new LdapAutodiscovery().getLdapServers(context, "example.org", "Frankfurt")).extracting("serverUrl")
+      .containsExactly("ldap://fra.example.org:389");
+    assertThat(new LdapAutodiscovery().getLdapServers(context, "example.org", null)).extracting("serverUrl")
+      .containsExactly("ldap://sin.example.org:389");
+  }
+
+  @Test
+  public void should_fall_back_to_servers_of_domain_when_none_found_for_site() throws NamingException {
+    DirContext context = mockSrvRecords("dns:/_ldap._tcp.example.org", "0 100 389 sin.example.org.");
+    when(context.getAttributes(Mockito.eq("dns:/_ldap._tcp.Frankfurt._sites.example.org"), Mockito.<String[]>anyObject()))
+      .thenThrow(new NameNotFoundException("DNS name not found"));
+
+    assertThat(new LdapAutodiscovery().getLdapServers(context, "example.org", "Frankfurt")).extracting("serverUrl")
+      .containsExactly("ldap://sin.example.org:389");
+  }
+
+  private static DirContext mockSrvRecords(String name, String srvRecord) throws NamingException {
+    DirContext context = mock(DirContext.class);
+    mockSrvRecords(context, name, srvRecord);
+    return context;
+  }
+
+  private static void mockSrvRecords(DirContext context, String name, String srvRecord) throws NamingException {
+    Attributes attributes = new BasicAttributes("srv", srvRecord);
+    when(context.getAttributes(Mockito.eq(name), Mockito.<String[]>anyObject())).thenReturn(attributes);
+  }
+
 }
@@ -0,0 +1,76 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapBloomFilterTest {
+
+  @Test
+  public void should_never_reject_put_logins() {
+    LdapBloomFilter filter = new LdapBloomFilter(1000, 0.01, Long.MAX_VALUE);
+    for (int i = 0; i < 1000; i++) {
+      filter.put("user" + i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertThat(filter.mightContain("user" + i)).isTrue();
+    }
+    assertThat(filter.mightContain("USER42")).isTrue();
+    assertThat(filter.getInsertionCount()).isEqualTo(1000);
+  }
+
+  @Test
+  public void should_reject_most_absent_logins() {
+    LdapBloomFilter filter = new LdapBloomFilter(1000, 0.01, Long.MAX_VALUE);
+    for (int i = 0; i < 1000; i++) {
+      filter.put("user" + i);
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (filter.mightContain("unknown" + i)) {
+        falsePositives++;
+      }
+    }
+    assertThat(falsePositives).isLessThan(300);
+    assertThat(filter.getExpectedFalsePositiveRate()).isBetween(0.005, 0.015);
+    // ~9.6 bits per login
+    assertThat(filter.getBitSize()).isBetween(9500, 9700);
+    assertThat(filter.getHashFunctions()).isEqualTo(7);
+  }
+
+  @Test
+  public void should_bound_memory() {
+    LdapBloomFilter filter = new LdapBloomFilter(1000, 0.01, 8 * 100);
+    assertThat(filter.getByteSize()).isEqualTo(100);
+    for (int i = 0; i < 1000; i++) {
+      filter.put("user" + i);
+    }
+    assertThat(filter.getExpectedFalsePositiveRate()).isGreaterThan(0.01);
+    assertThat(filter.toString()).startsWith("LdapBloomFilter{logins=1000, bytes=100, hashFunctions=1, falsePositiveRate=");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_fail_on_invalid_false_positive_rate() {
+    new LdapBloomFilter(1000, 1, Long.MAX_VALUE);
+  }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapCacheTest {
+
+  @Test
+  public void should_evict_least_recently_used_entries() {
+    LdapCache<String, String> cache = new LdapCache<>(2, 0);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    assertThat(cache.get("a")).isEqualTo("1");
+    cache.put("c", "3");
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get("b")).isNull();
+    assertThat(cache.get("a")).isEqualTo("1");
+    assertThat(cache.get("c")).isEqualTo("3");
+    assertThat(cache.getHitCount()).isEqualTo(3);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_expire_entries() throws Exception {
+    LdapCache<String, String> cache = new LdapCache<>(10, 50);
+    cache.put("a", "1");
+    assertThat(cache.get("a")).isEqualTo("1");
+    Thread.sleep(100);
+    assertThat(cache.get("a")).isNull();
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  public void should_remove_entries() {
+    LdapCache<String, String> cache = new LdapCache<>(10, 0);
+    cache.put("a", "1");
+    cache.remove("a");
+    assertThat(cache.get("a")).isNull();
+    assertThat(cache.toString()).isEqualTo("LdapCache{size=0, hits=0, misses=1}");
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.ldap.LdapCircuitBreaker.State;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapCircuitBreakerTest {
+
+  @Test
+  public void disabled_by_default() {
+    LdapCircuitBreaker breaker = new LdapCircuitBreaker(new Settings(), "ldap");
+    for (int i = 0; i < 10; i++) {
+      breaker.recordFailure(new CommunicationException());
+    }
+    assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+    assertThat(breaker.allowRequest()).isTrue();
+  }
+
+  @Test
+  public void should_open_after_consecutive_failures() {
+    LdapCircuitBreaker breaker = new LdapCircuitBreaker(new Settings()
+      .setProperty("ldap.circuitBreaker.failureThreshold", 2)
+      .setProperty("ldap.circuitBreaker.openDuration", 60_000), "ldap");
+
+    breaker.recordFailure(new CommunicationException());
+    breaker.recordSuccess();
+    breaker.recordFailure(new CommunicationException());
+    assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+
+    breaker.recordFailure(new CommunicationException());
+    assertThat(breaker.getState()).isEqualTo(State.OPEN);
+    assertThat(breaker.allowRequest()).isFalse();
+  }
+
+  @Test
+  public void should_ignore_failures_reported_by_server() {
+    LdapCircuitBreaker breaker = new LdapCircuitBreaker("ldap", 1, 60_000);
+    breaker.recordFailure(new AuthenticationException("Invalid credentials"));
+    breaker.recordFailure(new NamingException("Non unique result"));
+    assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+
+    breaker.recordFailure(new NamingException("LDAP response read timed out, timeout used: 100ms."));
+    assertThat(breaker.getState()).isEqualTo(State.OPEN);
+  }
+
+  @Test
+  public void should_ignore_local_failures() {
+    LdapCircuitBreaker breaker = new LdapCircuitBreaker("ldap", 1, 60_000);
+    breaker.recordFailure(new LdapPoolExhaustedException("Timeout waiting for an LDAP connection from pool ldap"));
+    breaker.recordFailure(new InterruptedNamingException("Interrupted while waiting for an LDAP connection from pool ldap"));
+    breaker.recordFailure(new ServiceUnavailableException("No replica of LDAP server ldap://localhost is available"));
+    assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  public void should_allow_single_trial_after_open_duration() throws Exception {
+    LdapCircuitBreaker breaker = new LdapCircuitBreaker("ldap", 1, 50);
+    breaker.recordFailure(new CommunicationException());
+    assertThat(breaker.allowRequest()).isFalse();
+
+    Thread.sleep(100);
+    assertThat(breaker.allowRequest()).isTrue();
+    assertThat(breaker.getState()).isEqualTo(State.HALF_OPEN);
+    assertThat(breaker.allowRequest()).isFalse();
+
+    // failed trial opens breaker again
+    breaker.recordFailure(new CommunicationException());
+    assertThat(breaker.getState()).isEqualTo(State.OPEN);
+    assertThat(breaker.allowRequest()).isFalse();
+
+    // successful trial closes breaker
+    Thread.sleep(100);
+    assertThat(breaker.allowRequest()).isTrue();
+    breaker.recordSuccess();
+    assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+    assertThat(breaker.allowRequest()).isTrue();
+  }
+
+}
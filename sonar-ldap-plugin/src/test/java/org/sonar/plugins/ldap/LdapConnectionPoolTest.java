@@ -0,0 +1,325 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.security.cert.X509Certificate;
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.ldap.InitialLdapContext;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LdapConnectionPoolTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void disabled_by_default() {
+    LdapContextFactory contextFactory = new LdapContextFactory(settings(), "ldap", server.getUrl());
+    assertThat(contextFactory.getConnectionPool()).isNull();
+  }
+
+  @Test
+  public void should_pool_start_tls_connections() throws Exception {
+    SSLContext defaultSslContext = SSLContext.getDefault();
+    SSLContext.setDefault(trustAllSslContext());
+    // Certificate of embedded server is self-signed
+    Settings settings = settings()
+      .setProperty("ldap.bindDn", "cn=bind,ou=users,dc=example,dc=org")
+      .setProperty("ldap.bindPassword", "bindpassword")
+      .setProperty("ldap.StartTLS", true)
+      .setProperty("ldap.pool.enabled", true)
+      .setProperty("ldap.pool.verifyCredentials", true);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    LdapConnectionPool pool = contextFactory.getConnectionPool();
+    LdapUserMapping userMapping = new LdapUserMapping(settings, "ldap");
+    int tlsSessions = server.getTlsSessionCount();
+    try {
+      assertThat(userMapping.createSearch(contextFactory, "godin").findUnique()).isNotNull();
+      assertThat(pool.getIdleCount()).isEqualTo(1);
+      assertThat(server.getTlsSessionCount()).isEqualTo(tlsSessions + 1);
+
+      // connection is reused
+      assertThat(userMapping.createSearch(contextFactory, "tester").findUnique()).isNotNull();
+      assertThat(pool.getIdleCount()).isEqualTo(1);
+      assertThat(server.getTlsSessionCount()).isEqualTo(tlsSessions + 1);
+
+      // bind as user and back as bind user is performed on the same encrypted connection
+      contextFactory.checkCredentials("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org", "secret1");
+      assertThat(pool.getActiveCount()).isEqualTo(0);
+      assertThat(pool.getIdleCount()).isEqualTo(1);
+      assertThat(server.getTlsSessionCount()).isEqualTo(tlsSessions + 1);
+
+      InitialDirContext context = contextFactory.createBindContext();
+      try {
+        assertThat(context.getEnvironment().get(Context.SECURITY_PRINCIPAL)).isEqualTo("cn=bind,ou=users,dc=example,dc=org");
+        assertThat(context.getAttributes("cn=bind,ou=users,dc=example,dc=org")).isNotNull();
+      } finally {
+        context.close();
+      }
+      assertThat(server.getTlsSessionCount()).isEqualTo(tlsSessions + 1);
+
+      try {
+        contextFactory.checkCredentials("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org", "wrong");
+        fail();
+      } catch (AuthenticationException e) {
+        // also bound back as bind user on the same encrypted connection
+        assertThat(pool.getIdleCount()).isEqualTo(1);
+      }
+      assertThat(userMapping.createSearch(contextFactory, "godin").findUnique()).isNotNull();
+      assertThat(server.getTlsSessionCount()).isEqualTo(tlsSessions + 1);
+    } finally {
+      contextFactory.close();
+      SSLContext.setDefault(defaultSslContext);
+    }
+  }
+
+  @Test
+  public void should_reuse_connections() throws Exception {
+    Settings settings = settings()
+      .setProperty("ldap.pool.enabled", true)
+      .setProperty("ldap.pool.maxSize", 2);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    LdapConnectionPool pool = contextFactory.getConnectionPool();
+    LdapUserMapping userMapping = new LdapUserMapping(settings, "ldap");
+
+    assertThat(userMapping.createSearch(contextFactory, "godin").findUnique()).isNotNull();
+    assertThat(pool.getActiveCount()).isEqualTo(0);
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+
+    assertThat(userMapping.createSearch(contextFactory, "tester").findUnique()).isNotNull();
+    assertThat(pool.getActiveCount()).isEqualTo(0);
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+
+    InitialDirContext first = contextFactory.createBindContext();
+    InitialDirContext second = contextFactory.createBindContext();
+    assertThat(pool.getActiveCount()).isEqualTo(2);
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+    first.close();
+    second.close();
+    assertThat(pool.getActiveCount()).isEqualTo(0);
+    assertThat(pool.getIdleCount()).isEqualTo(2);
+
+    pool.close();
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_fail_when_exhausted() throws Exception {
+    Settings settings = settings()
+      .setProperty("ldap.pool.enabled", true)
+      .setProperty("ldap.pool.maxSize", 1)
+      .setProperty("ldap.pool.maxWait", 10);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    InitialDirContext context = contextFactory.createBindContext();
+    try {
+      thrown.expect(ServiceUnavailableException.class);
+      thrown.expectMessage("Timeout waiting for an LDAP connection from pool ldap");
+      contextFactory.createBindContext();
+    } finally {
+      context.close();
+    }
+  }
+
+  @Test
+  public void should_not_open_circuit_breaker_when_exhausted() throws Exception {
+    Settings settings = settings()
+      .setProperty("ldap.pool.enabled", true)
+      .setProperty("ldap.pool.maxSize", 1)
+      .setProperty("ldap.pool.maxWait", 10)
+      .setProperty("ldap.healthCheckInterval", 60_000)
+      .setProperty("ldap.circuitBreaker.failureThreshold", 1);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    InitialDirContext context = contextFactory.createBindContext();
+    try {
+      new LdapSearch(contextFactory).setBaseDn("dc=example,dc=org").setRequest("(uid={0})").setParameters("godin").findUnique();
+      fail("LdapPoolExhaustedException expected");
+    } catch (LdapPoolExhaustedException e) {
+      // expected
+    }
+    try {
+      contextFactory.checkCredentials("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org", "secret1");
+    } catch (LdapPoolExhaustedException e) {
+      // expected when credentials are verified using pool
+    }
+    new LdapHealthProber(contextFactory, 60_000).probe();
+    context.close();
+
+    assertThat(contextFactory.getCircuitBreaker().getState()).isEqualTo(LdapCircuitBreaker.State.CLOSED);
+    assertThat(contextFactory.isAvailable()).isTrue();
+  }
+
+  @Test
+  public void should_validate_only_connections_idle_for_long() throws Exception {
+    Settings settings = new Settings().setProperty("ldap.pool.validateAfterIdleTime", 100);
+    InitialLdapContext first = mock(InitialLdapContext.class);
+    InitialLdapContext second = mock(InitialLdapContext.class);
+    when(first.getAttributes("", ContextHelper.NO_ATTRIBUTES)).thenThrow(new CommunicationException());
+    LdapConnectionPool.Connector connector = mock(LdapConnectionPool.Connector.class);
+    when(connector.connect()).thenReturn(first, second);
+    LdapConnectionPool pool = new LdapConnectionPool(settings, "ldap", connector);
+
+    pool.borrow().close();
+    pool.borrow().close();
+    // recently used connection is not validated
+    verify(first, never()).getAttributes("", ContextHelper.NO_ATTRIBUTES);
+    verify(connector, times(1)).connect();
+
+    Thread.sleep(150);
+    pool.borrow().close();
+    // stale connection is replaced
+    verify(first).getAttributes("", ContextHelper.NO_ATTRIBUTES);
+    verify(first).close();
+    verify(connector, times(2)).connect();
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_not_keep_expired_connections() throws Exception {
+    Settings settings = settings()
+      .setProperty("ldap.pool.enabled", true)
+      .setProperty("ldap.pool.maxLifetime", -1);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    contextFactory.createBindContext().close();
+    assertThat(contextFactory.getConnectionPool().getIdleCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_evict_idle_connections() throws Exception {
+    Settings settings = settings()
+      .setProperty("ldap.pool.enabled", true)
+      .setProperty("ldap.pool.maxIdleTime", 0);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    InitialDirContext context = contextFactory.createBindContext();
+    Thread.sleep(5);
+    context.close();
+    Thread.sleep(5);
+    contextFactory.getConnectionPool().evictIdle();
+    assertThat(contextFactory.getConnectionPool().getIdleCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void closed_context_should_not_be_usable() throws Exception {
+    Settings settings = settings()
+      .setProperty("ldap.pool.enabled", true);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    InitialDirContext context = contextFactory.createBindContext();
+    context.close();
+    // second close is ignored
+    context.close();
+    assertThat(contextFactory.getConnectionPool().getIdleCount()).isEqualTo(1);
+
+    thrown.expect(NamingException.class);
+    context.getAttributes("");
+  }
+
+  @Test
+  public void should_verify_credentials_using_pooled_connection() throws Exception {
+    Settings settings = settings()
+      .setProperty("ldap.bindDn", "cn=bind,ou=users,dc=example,dc=org")
+      .setProperty("ldap.bindPassword", "bindpassword")
+      .setProperty("ldap.pool.enabled", true)
+      .setProperty("ldap.pool.verifyCredentials", true);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    LdapConnectionPool pool = contextFactory.getConnectionPool();
+
+    contextFactory.checkCredentials("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org", "secret1");
+    assertThat(pool.getActiveCount()).isEqualTo(0);
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+
+    // connection was bound back as bind user
+    InitialDirContext context = contextFactory.createBindContext();
+    try {
+      assertThat(context.getEnvironment().get(Context.SECURITY_PRINCIPAL)).isEqualTo("cn=bind,ou=users,dc=example,dc=org");
+      assertThat(context.getAttributes("cn=bind,ou=users,dc=example,dc=org")).isNotNull();
+    } finally {
+      context.close();
+    }
+
+    try {
+      contextFactory.checkCredentials("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org", "wrong");
+      fail();
+    } catch (AuthenticationException e) {
+      // connection is bound back as bind user and reused, instead of being reopened
+      assertThat(pool.getActiveCount()).isEqualTo(0);
+      assertThat(pool.getIdleCount()).isEqualTo(1);
+    }
+    context = contextFactory.createBindContext();
+    try {
+      assertThat(context.getEnvironment().get(Context.SECURITY_PRINCIPAL)).isEqualTo("cn=bind,ou=users,dc=example,dc=org");
+      assertThat(context.getAttributes("cn=bind,ou=users,dc=example,dc=org")).isNotNull();
+    } finally {
+      context.close();
+    }
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+  }
+
+  private static SSLContext trustAllSslContext() throws Exception {
+    TrustManager trustAll = new X509TrustManager() {
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        // all trusted
+      }
+
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        // all trusted
+      }
+
+      @Override
+      public X509Certificate[] getAcceptedIssuers() {
+        return new X509Certificate[0];
+      }
+    };
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, new TrustManager[] {trustAll}, null);
+    return sslContext;
+  }
+
+  private static Settings settings() {
+    return new Settings()
+      .setProperty("ldap.url", server.getUrl())
+      .setProperty("ldap.user.baseDn", "ou=users,dc=example,dc=org");
+  }
+
+}
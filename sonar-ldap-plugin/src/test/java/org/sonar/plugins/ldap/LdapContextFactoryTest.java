@@ -0,0 +1,234 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import javax.naming.CommunicationException;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchResult;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.ldap.LdapAutodiscovery.LdapSrvRecord;
+import org.sonar.plugins.ldap.LdapCircuitBreaker.State;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapContextFactoryTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void no_timeouts_by_default() throws Exception {
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", server.getUrl());
+    assertThat(contextFactory.getReadTimeout()).isEqualTo(0);
+    InitialDirContext context = contextFactory.createBindContext();
+    try {
+      assertThat(context.getEnvironment().get("com.sun.jndi.ldap.connect.timeout")).isNull();
+      assertThat(context.getEnvironment().get("com.sun.jndi.ldap.read.timeout")).isNull();
+    } finally {
+      context.close();
+    }
+  }
+
+  @Test
+  public void should_set_timeouts() throws Exception {
+    Settings settings = new Settings()
+      .setProperty("ldap.connectTimeout", 2000)
+      .setProperty("ldap.readTimeout", 5000);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    InitialDirContext context = contextFactory.createBindContext();
+    try {
+      assertThat(context.getEnvironment().get("com.sun.jndi.ldap.connect.timeout")).isEqualTo("2000");
+      assertThat(context.getEnvironment().get("com.sun.jndi.ldap.read.timeout")).isEqualTo("5000");
+    } finally {
+      context.close();
+    }
+  }
+
+  @Test
+  public void should_adapt_read_timeout_to_observed_latencies() throws Exception {
+    Settings settings = new Settings()
+      .setProperty("ldap.readTimeout", 30000)
+      .setProperty("ldap.adaptiveReadTimeout", true);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    // not enough samples
+    contextFactory.recordLatency(10);
+    assertThat(contextFactory.getReadTimeout()).isEqualTo(30000);
+
+    for (int i = 0; i < 100; i++) {
+      contextFactory.recordLatency(10);
+    }
+    // never less than 1 second
+    assertThat(contextFactory.getReadTimeout()).isEqualTo(1000);
+
+    for (int i = 0; i < 100; i++) {
+      contextFactory.recordLatency(2000);
+    }
+    assertThat(contextFactory.getReadTimeout()).isEqualTo(8000);
+    InitialDirContext context = contextFactory.createUserContext("cn=bind,ou=users,dc=example,dc=org", "bindpassword");
+    try {
+      assertThat(context.getEnvironment().get("com.sun.jndi.ldap.read.timeout")).isEqualTo("8000");
+    } finally {
+      context.close();
+    }
+
+    for (int i = 0; i < 256; i++) {
+      contextFactory.recordLatency(20000);
+    }
+    // bounded by configured timeout
+    assertThat(contextFactory.getReadTimeout()).isEqualTo(30000);
+  }
+
+  @Test
+  public void should_fail_over_to_next_replica() throws Exception {
+    String unreachableUrl = "ldap://localhost:" + getUnusedPort();
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", unreachableUrl + " " + server.getUrl());
+    assertThat(contextFactory.getProviderUrl()).isEqualTo(unreachableUrl + " " + server.getUrl());
+    assertThat(contextFactory.getReplicas()).extracting("providerUrl").containsExactly(unreachableUrl, server.getUrl());
+
+    SearchResult result = new LdapSearch(contextFactory)
+      .setBaseDn("dc=example,dc=org")
+      .setRequest("(uid={0})")
+      .setParameters("godin")
+      .findUnique();
+    assertThat(result.getNameInNamespace()).isEqualTo("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+    contextFactory.checkCredentials("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org", "secret1");
+
+    // Only unreachable replica is marked as not available
+    contextFactory.testConnection();
+    assertThat(contextFactory.isAvailable()).isTrue();
+    assertThat(contextFactory.getReplicas().get(0).isAvailable()).isFalse();
+    assertThat(contextFactory.getTargets()).extracting("providerUrl").containsExactly(server.getUrl(), unreachableUrl);
+  }
+
+  @Test
+  public void should_grant_trial_of_half_open_replica_only_when_request_sent() throws Exception {
+    Settings settings = new Settings()
+      .setProperty("ldap.circuitBreaker.failureThreshold", 1)
+      .setProperty("ldap.circuitBreaker.openDuration", 100);
+    String recoveringUrl = server.getUrl().replace("localhost", "127.0.0.1");
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl() + " " + recoveringUrl);
+    LdapContextFactory fast = contextFactory.getReplicas().get(0);
+    LdapContextFactory recovering = contextFactory.getReplicas().get(1);
+    fast.recordLatency(1);
+    recovering.recordLatency(10_000);
+    recovering.recordFailure(new CommunicationException());
+    assertThat(contextFactory.getTargets()).containsExactly(fast);
+
+    Thread.sleep(150);
+    for (int i = 0; i < 3; i++) {
+      assertThat(contextFactory.getTargets()).containsExactly(fast, recovering);
+      assertThat(createSearch(contextFactory).findUnique()).isNotNull();
+    }
+    // recovering replica was never contacted, so its trial is still available
+    assertThat(recovering.getCircuitBreaker().getState()).isEqualTo(State.OPEN);
+
+    fast.recordFailure(new CommunicationException());
+    assertThat(createSearch(contextFactory).findUnique()).isNotNull();
+    assertThat(recovering.getCircuitBreaker().getState()).isEqualTo(State.CLOSED);
+  }
+
+  private static LdapSearch createSearch(LdapContextFactory contextFactory) {
+    return new LdapSearch(contextFactory)
+      .setBaseDn("dc=example,dc=org")
+      .setRequest("(uid={0})")
+      .setParameters("godin");
+  }
+
+  @Test
+  public void should_prefer_replica_with_lowest_latency() {
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", "ldap://first ldap://second ldap://third");
+    List<LdapContextFactory> replicas = contextFactory.getReplicas();
+    replicas.get(0).recordLatency(30);
+    replicas.get(1).recordLatency(10);
+    replicas.get(2).recordLatency(20);
+    assertThat(contextFactory.getTargets()).extracting("providerUrl").containsExactly("ldap://second", "ldap://third", "ldap://first");
+  }
+
+  @Test
+  public void should_choose_fastest_of_two_random_replicas() {
+    Settings settings = new Settings().setProperty("ldap.loadBalancing", "powerOfTwoChoices");
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", "ldap://first ldap://second ldap://third");
+    List<LdapContextFactory> replicas = contextFactory.getReplicas();
+    replicas.get(0).recordLatency(30);
+    replicas.get(1).recordLatency(10);
+    replicas.get(2).recordLatency(20);
+    for (int i = 0; i < 20; i++) {
+      List<LdapContextFactory> targets = contextFactory.getTargets();
+      assertThat(targets).hasSize(3);
+      assertThat(targets.get(0).getProviderUrl()).isNotEqualTo("ldap://first");
+    }
+  }
+
+  @Test
+  public void should_order_srv_records_by_priority_and_weight() {
+    List<LdapSrvRecord> srvRecords = Arrays.asList(
+      new LdapSrvRecord("ldap://backup", 10, 100),
+      new LdapSrvRecord("ldap://light", 0, 10),
+      new LdapSrvRecord("ldap://heavy", 0, 90));
+    LdapContextFactory contextFactory = LdapContextFactory.forSrvRecords(new Settings(), "ldap", srvRecords, Collections::emptyList, 0);
+    Random random = new Random(1);
+    int heavyFirst = 0;
+    for (int i = 0; i < 1000; i++) {
+      List<LdapContextFactory> targets = LdapContextFactory.orderBySrvRecords(contextFactory.getReplicas(), random);
+      assertThat(targets.get(2).getProviderUrl()).isEqualTo("ldap://backup");
+      if ("ldap://heavy".equals(targets.get(0).getProviderUrl())) {
+        heavyFirst++;
+      }
+    }
+    assertThat(heavyFirst).isBetween(850, 950);
+  }
+
+  @Test
+  public void should_refresh_srv_records() {
+    List<LdapSrvRecord> srvRecords = Arrays.asList(new LdapSrvRecord("ldap://first", 0, 1), new LdapSrvRecord("ldap://second", 0, 1));
+    List<LdapSrvRecord> refreshedSrvRecords = Arrays.asList(new LdapSrvRecord("ldap://second", 0, 1), new LdapSrvRecord("ldap://third", 0, 1));
+    LdapContextFactory contextFactory = LdapContextFactory.forSrvRecords(new Settings(), "ldap", srvRecords, () -> refreshedSrvRecords, 0);
+    LdapContextFactory second = contextFactory.getReplicas().get(1);
+
+    contextFactory.refreshSrvRecords();
+    assertThat(contextFactory.getProviderUrl()).isEqualTo("ldap://second ldap://third");
+    // statistics of servers, which are still advertised, are kept
+    assertThat(contextFactory.getReplicas().get(0)).isSameAs(second);
+  }
+
+  @Test
+  public void should_keep_servers_when_nothing_discovered() {
+    List<LdapSrvRecord> srvRecords = Collections.singletonList(new LdapSrvRecord("ldap://first", 0, 1));
+    LdapContextFactory contextFactory = LdapContextFactory.forSrvRecords(new Settings(), "ldap", srvRecords, Collections::emptyList, 0);
+    contextFactory.refreshSrvRecords();
+    assertThat(contextFactory.getProviderUrl()).isEqualTo("ldap://first");
+    assertThat(contextFactory.getReplicas()).hasSize(1);
+  }
+
+  private static int getUnusedPort() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+}
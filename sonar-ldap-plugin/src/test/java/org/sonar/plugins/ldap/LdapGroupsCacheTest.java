@@ -0,0 +1,128 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class LdapGroupsCacheTest {
+
+  private final AtomicInteger loads = new AtomicInteger();
+  private final AtomicInteger refreshes = new AtomicInteger();
+
+  @Test
+  public void should_load_groups_once() {
+    LdapGroupsCache cache = new LdapGroupsCache(10, 60_000, 3_600_000, Runnable::run);
+    assertThat(cache.get("godin", this::load, this::refresh)).containsOnly("sonar-users");
+    assertThat(cache.get("godin", this::load, this::refresh)).containsOnly("sonar-users");
+    assertThat(loads.get()).isEqualTo(1);
+    assertThat(refreshes.get()).isZero();
+    assertThat(cache.getEntries().getHitCount()).isEqualTo(1);
+    assertThat(cache.getEntries().getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_return_stale_groups_while_refreshing() {
+    LdapGroupsCache cache = new LdapGroupsCache(10, 0, 3_600_000, Runnable::run);
+    assertThat(cache.get("godin", this::load, this::refresh)).containsOnly("sonar-users");
+    sleep(5);
+    // refreshed synchronously by executor of this test, but stale groups are returned
+    assertThat(cache.get("godin", this::load, this::refresh)).containsOnly("sonar-users");
+    assertThat(cache.get("godin", this::load, this::refresh)).containsOnly("sonar-users", "sonar-developers");
+    assertThat(loads.get()).isEqualTo(1);
+    assertThat(refreshes.get()).isPositive();
+  }
+
+  @Test
+  public void should_keep_stale_groups_when_refresh_fails() {
+    LdapGroupsCache cache = new LdapGroupsCache(10, 0, 3_600_000, Runnable::run);
+    cache.get("godin", this::load, this::refresh);
+    sleep(5);
+    assertThat(cache.get("godin", this::load, () -> {
+      throw new LdapException("Unable to retrieve groups");
+    })).containsOnly("sonar-users");
+    sleep(5);
+    assertThat(cache.get("godin", this::load, this::refresh)).containsOnly("sonar-users");
+    assertThat(cache.get("godin", this::load, this::refresh)).containsOnly("sonar-users", "sonar-developers");
+  }
+
+  @Test
+  public void should_not_refresh_twice_concurrently() {
+    Collection<Runnable> tasks = new ArrayList<>();
+    LdapGroupsCache cache = new LdapGroupsCache(10, 0, 3_600_000, tasks::add);
+    cache.get("godin", this::load, this::refresh);
+    sleep(5);
+    cache.get("godin", this::load, this::refresh);
+    cache.get("godin", this::load, this::refresh);
+    assertThat(tasks).hasSize(1);
+  }
+
+  @Test
+  public void should_load_groups_older_than_hard_time_to_live() {
+    LdapGroupsCache cache = new LdapGroupsCache(10, 0, 1, task -> fail("no refresh expected"));
+    cache.get("godin", this::load, this::refresh);
+    sleep(5);
+    cache.get("godin", this::load, this::refresh);
+    assertThat(loads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_load_groups_again_once_invalidated() {
+    LdapGroupsCache cache = new LdapGroupsCache(10, 60_000, 3_600_000, Runnable::run);
+    cache.get("godin", this::load, this::refresh);
+    cache.invalidate("godin");
+    cache.get("godin", this::load, this::refresh);
+    assertThat(loads.get()).isEqualTo(2);
+  }
+
+  @Test(expected = LdapException.class)
+  public void should_fail_when_groups_unknown_and_load_fails() {
+    LdapGroupsCache cache = new LdapGroupsCache(10, 60_000, 3_600_000, Runnable::run);
+    cache.get("godin", () -> {
+      throw new LdapException("Unable to retrieve groups");
+    }, this::refresh);
+  }
+
+  private Collection<String> load() {
+    loads.incrementAndGet();
+    return Collections.singletonList("sonar-users");
+  }
+
+  private Collection<String> refresh() {
+    refreshes.incrementAndGet();
+    return Arrays.asList("sonar-users", "sonar-developers");
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -146,4 +146,22 @@ public class LdapGroupsProviderTest {
     assertThat(groups).containsOnly("sonar-users", "sonar-developers", "linux-users");
   }
 
+  @Test
+  public void should_cache_groups() throws Exception {
+    Settings settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, null)
+      .setProperty("ldap.groupsCache.size", 10);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapGroupsProvider groupsProvider = new LdapGroupsProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(),
+      settingsManager.getGroupMappings(), settingsManager.getServerSelector(), settingsManager.getUserLookup(), settingsManager.getGroupsCache());
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().get("<default>");
+    try {
+      assertThat(groupsProvider.getGroups("godin")).containsOnly("sonar-users", "sonar-developers");
+      int searches = contextFactory.getLatencies().getSampleCount();
+      assertThat(groupsProvider.getGroups("godin")).containsOnly("sonar-users", "sonar-developers");
+      assertThat(contextFactory.getLatencies().getSampleCount()).isEqualTo(searches);
+    } finally {
+      settingsManager.stop();
+    }
+  }
+
 }
@@ -0,0 +1,89 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
+
+public class LdapHealthProberTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void should_mark_server_available() {
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", server.getUrl());
+    contextFactory.setAvailable(false);
+
+    new LdapHealthProber(contextFactory, 1000).probe();
+
+    assertThat(contextFactory.isAvailable()).isTrue();
+    assertThat(contextFactory.getLatencies().getSampleCount()).isEqualTo(1);
+    assertThat(contextFactory.getLatencies().getAverage()).isGreaterThanOrEqualTo(0);
+  }
+
+  @Test
+  public void should_not_record_connect_and_bind_as_latency() throws Exception {
+    LdapContextFactory contextFactory = spy(new LdapContextFactory(new Settings(), "ldap", server.getUrl()));
+    doAnswer(invocation -> {
+      Thread.sleep(500);
+      return invocation.callRealMethod();
+    }).when(contextFactory).createBindContext();
+
+    new LdapHealthProber(contextFactory, 1000).probe();
+
+    assertThat(contextFactory.getLatencies().getSampleCount()).isEqualTo(1);
+    assertThat(contextFactory.getLatencies().getAverage()).isLessThan(500);
+  }
+
+  @Test
+  public void should_mark_server_not_available() {
+    LdapContextFactory contextFactory = new LdapContextFactory(new Settings(), "ldap", "ldap://no-such-host");
+
+    new LdapHealthProber(contextFactory, 1000).probe();
+
+    assertThat(contextFactory.isAvailable()).isFalse();
+    assertThat(contextFactory.getLatencies().getSampleCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_probe_periodically() throws Exception {
+    Settings settings = new Settings()
+      .setProperty("ldap.healthCheckInterval", 10);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    contextFactory.setAvailable(false);
+    contextFactory.startHealthCheck();
+    try {
+      for (int i = 0; i < 500 && !contextFactory.isAvailable(); i++) {
+        Thread.sleep(10);
+      }
+      assertThat(contextFactory.isAvailable()).isTrue();
+    } finally {
+      contextFactory.close();
+    }
+  }
+
+}
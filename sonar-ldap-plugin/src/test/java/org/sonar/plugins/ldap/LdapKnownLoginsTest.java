@@ -0,0 +1,103 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Collections;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapKnownLoginsTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void should_load_logins() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null)
+      .setProperty("ldap.loginFilter.refreshInterval", 3600000), new LdapAutodiscovery());
+    LdapKnownLogins knownLogins = settingsManager.getKnownLogins().get("<default>");
+    assertThat(knownLogins.isEnabled()).isTrue();
+    // Not loaded yet
+    assertThat(knownLogins.mightContain("unknown")).isTrue();
+    assertThat(knownLogins.getFilter()).isNull();
+    assertThat(knownLogins.rejects("unknown")).isFalse();
+
+    knownLogins.load();
+    // bind user isn't an inetOrgPerson
+    assertThat(knownLogins.mightContain("godin")).isTrue();
+    assertThat(knownLogins.mightContain("tester")).isTrue();
+    assertThat(knownLogins.mightContain("unknown")).isFalse();
+    assertThat(knownLogins.getFilter().getInsertionCount()).isEqualTo(3);
+    assertThat(knownLogins.isFresh()).isTrue();
+    assertThat(knownLogins.rejects("godin")).isFalse();
+    assertThat(knownLogins.rejects("unknown")).isTrue();
+  }
+
+  @Test
+  public void should_search_logins_created_since_loaded_once_logins_are_no_longer_fresh() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    // Loaded before godin was created
+    Settings loadSettings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null)
+      .setProperty("ldap.user.request", "(&(objectClass=inetOrgPerson)(uid={0})(!(uid=godin)))")
+      .setProperty("ldap.loginFilter.refreshInterval", 200);
+    LdapKnownLogins knownLogins = new LdapKnownLogins(loadSettings, "ldap", settingsManager.getContextFactories().get("<default>"),
+      new LdapUserMapping(loadSettings, "ldap"));
+    knownLogins.load();
+    assertThat(knownLogins.rejects("godin")).isTrue();
+
+    LdapServerSelector serverSelector = new LdapServerSelector(settingsManager.getContextFactories(), 0, Collections.singletonMap("<default>", knownLogins));
+    LdapAuthenticator authenticator = new LdapAuthenticator(settingsManager.getContextFactories(), settingsManager.getUserMappings(), serverSelector,
+      settingsManager.getUserLookup(), null);
+    assertThat(authenticator.authenticate("godin", "secret1")).isFalse();
+    assertThat(authenticator.authenticate("tester", "secret2")).isTrue();
+
+    // Not refreshed within two intervals
+    Thread.sleep(500);
+    assertThat(knownLogins.isFresh()).isFalse();
+    assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+  }
+
+  @Test
+  public void should_be_disabled_by_default() {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    assertThat(settingsManager.getKnownLogins()).isEmpty();
+  }
+
+  @Test
+  public void should_be_disabled_when_login_is_not_compared_for_equality() {
+    Settings settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null);
+    settings.setProperty("ldap.loginFilter.refreshInterval", 3600000)
+      .setProperty("ldap.user.request", "(&(objectClass=inetOrgPerson)(uid=*{login}))");
+    assertThat(new LdapSettingsManager(settings, new LdapAutodiscovery()).getKnownLogins()).isEmpty();
+  }
+
+  @Test
+  public void should_extract_login_attributes() {
+    assertThat(LdapKnownLogins.getLoginAttributes("(&(objectClass=user)(sAMAccountName={0}))")).containsExactly("sAMAccountName");
+    assertThat(LdapKnownLogins.getLoginAttributes("(&(objectClass=user)(|(uid={0})(mail={0})))")).containsExactly("uid", "mail");
+    assertThat(LdapKnownLogins.getLoginAttributes("(&(objectClass=user)(|(uid={0})(cn={0}*)))")).isNull();
+    assertThat(LdapKnownLogins.getLoginAttributes("(objectClass=user)")).isNull();
+  }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapLatencyRecorderTest {
+
+  @Test
+  public void percentiles() {
+    LdapLatencyRecorder recorder = new LdapLatencyRecorder();
+    assertThat(recorder.getPercentile(99)).isEqualTo(-1);
+    for (int i = 100; i >= 1; i--) {
+      recorder.record(i);
+    }
+    assertThat(recorder.getSampleCount()).isEqualTo(100);
+    assertThat(recorder.getPercentile(50)).isEqualTo(50);
+    assertThat(recorder.getPercentile(95)).isEqualTo(95);
+    assertThat(recorder.getPercentile(100)).isEqualTo(100);
+    assertThat(recorder.getPercentile(0)).isEqualTo(1);
+  }
+
+  @Test
+  public void keeps_only_most_recent_samples() {
+    LdapLatencyRecorder recorder = new LdapLatencyRecorder(3);
+    recorder.record(1000);
+    recorder.record(1);
+    recorder.record(2);
+    recorder.record(3);
+    assertThat(recorder.getSampleCount()).isEqualTo(3);
+    assertThat(recorder.getPercentile(100)).isEqualTo(3);
+  }
+
+}
@@ -19,6 +19,7 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.net.ServerSocket;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -49,6 +50,48 @@ public class LdapRealmTest {
     assertThat(realm.getGroupsProvider()).isNull();
   }
 
+  @Test
+  public void should_warm_up_connection_pool() {
+    Settings settings = new Settings()
+      .setProperty("ldap.url", server.getUrl())
+      .setProperty("ldap.pool.enabled", true)
+      .setProperty("ldap.pool.initialSize", 3);
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    new LdapRealm(settingsManager).init();
+    LdapConnectionPool pool = settingsManager.getContextFactories().values().iterator().next().getConnectionPool();
+    assertThat(pool.getIdleCount()).isEqualTo(3);
+    assertThat(pool.getActiveCount()).isEqualTo(0);
+    settingsManager.stop();
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_mark_unreachable_server_as_not_available() {
+    Settings settings = new Settings()
+      .setProperty("ldap.servers", "example,unreachable")
+      .setProperty("ldap.example.url", server.getUrl())
+      .setProperty("ldap.unreachable.url", "ldap://no-such-host");
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    new LdapRealm(settingsManager).init();
+    assertThat(settingsManager.getContextFactories().get("example").isAvailable()).isTrue();
+    assertThat(settingsManager.getContextFactories().get("unreachable").isAvailable()).isFalse();
+  }
+
+  @Test
+  public void should_not_wait_for_hanging_server_longer_than_timeout() throws Exception {
+    try (ServerSocket hangingServer = new ServerSocket(0)) {
+      Settings settings = new Settings()
+        .setProperty("ldap.connectionTestTimeout", 500)
+        .setProperty("ldap.servers", "example,hanging")
+        .setProperty("ldap.example.url", server.getUrl())
+        .setProperty("ldap.hanging.url", "ldap://localhost:" + hangingServer.getLocalPort());
+      LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+      new LdapRealm(settingsManager).init();
+      assertThat(settingsManager.getContextFactories().get("example").isAvailable()).isTrue();
+      assertThat(settingsManager.getContextFactories().get("hanging").isAvailable()).isFalse();
+    }
+  }
+
   @Test
   public void noConnection() {
     Settings settings = new Settings()
@@ -19,6 +19,7 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.net.ServerSocket;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Map;
@@ -29,6 +30,7 @@ import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.sonar.api.config.Settings;
 import org.sonar.plugins.ldap.server.LdapServer;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -107,6 +109,63 @@ public class LdapSearchTest {
     assertThat(search.findUnique()).isNotNull();
   }
 
+  @Test
+  public void should_hedge_search_on_alternate_server() throws Exception {
+    try (ServerSocket hangingServer = new ServerSocket(0)) {
+      Settings settings = new Settings()
+        .setProperty("ldap.readTimeout", 10_000)
+        .setProperty("ldap.hedgeUrl", server.getUrl());
+      LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", "ldap://localhost:" + hangingServer.getLocalPort());
+      try {
+        assertThat(contextFactory.getHedge().getProviderUrl()).isEqualTo(server.getUrl());
+        assertThat(contextFactory.getHedgeDelay()).isEqualTo(-1);
+        for (int i = 0; i < 20; i++) {
+          contextFactory.recordLatency(10);
+        }
+        assertThat(contextFactory.getHedgeDelay()).isEqualTo(10);
+
+        long start = System.currentTimeMillis();
+        LdapSearch search = new LdapSearch(contextFactory)
+          .setBaseDn("dc=example,dc=org")
+          .setRequest("(uid={0})")
+          .setParameters("godin");
+        assertThat(search.findUnique().getNameInNamespace()).isEqualTo("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+        assertThat(System.currentTimeMillis() - start).isLessThan(5_000);
+      } finally {
+        contextFactory.close();
+      }
+    }
+  }
+
+  @Test
+  public void should_not_hedge_search_when_no_thread_available() throws Exception {
+    try (ServerSocket hangingServer = new ServerSocket(0)) {
+      Settings settings = new Settings()
+        .setProperty("ldap.connectTimeout", 500)
+        .setProperty("ldap.readTimeout", 500)
+        .setProperty("ldap.hedgeUrl", server.getUrl());
+      LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", "ldap://localhost:" + hangingServer.getLocalPort());
+      try {
+        for (int i = 0; i < 20; i++) {
+          contextFactory.recordLatency(10);
+        }
+        // Hedges are rejected
+        contextFactory.getHedgeExecutor().shutdown();
+
+        LdapSearch search = new LdapSearch(contextFactory)
+          .setBaseDn("dc=example,dc=org")
+          .setRequest("(uid={0})")
+          .setParameters("godin");
+        thrown.expect(NamingException.class);
+        thrown.expectMessage("timed out");
+        search.findUnique();
+      } finally {
+        assertThat(Thread.currentThread().isInterrupted()).isFalse();
+        contextFactory.close();
+      }
+    }
+  }
+
   private static <E> ArrayList<E> enumerationToArrayList(Enumeration<E> enumeration) {
     ArrayList<E> result = new ArrayList<>();
     while (enumeration.hasMoreElements()) {
@@ -0,0 +1,190 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.naming.CommunicationException;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.ldap.LdapCircuitBreaker.State;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LdapServerSelectorTest {
+
+  @Test
+  public void should_query_unavailable_servers_last() {
+    Map<String, LdapContextFactory> contextFactories = new LinkedHashMap<>();
+    for (String serverKey : Arrays.asList("first", "second", "third")) {
+      contextFactories.put(serverKey, new LdapContextFactory(new Settings(), "ldap." + serverKey, "ldap://" + serverKey));
+    }
+    LdapServerSelector selector = new LdapServerSelector(contextFactories);
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("first", "second", "third");
+
+    contextFactories.get("first").setAvailable(false);
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("second", "third", "first");
+  }
+
+  @Test
+  public void should_query_server_of_previous_resolution_first() {
+    Map<String, LdapContextFactory> contextFactories = new LinkedHashMap<>();
+    for (String serverKey : Arrays.asList("first", "second", "third")) {
+      contextFactories.put(serverKey, new LdapContextFactory(new Settings(), "ldap." + serverKey, "ldap://" + serverKey));
+    }
+    LdapServerSelector selector = new LdapServerSelector(contextFactories, 1);
+    selector.resolved("godin", "third");
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("third", "first", "second");
+    assertThat(selector.select("tester", contextFactories.keySet())).containsExactly("first", "second", "third");
+
+    contextFactories.get("third").setAvailable(false);
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("first", "second", "third");
+    contextFactories.get("third").setAvailable(true);
+
+    // least recently used login is forgotten
+    selector.resolved("tester", "second");
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("first", "second", "third");
+    assertThat(selector.select("tester", contextFactories.keySet())).containsExactly("second", "first", "third");
+  }
+
+  @Test
+  public void should_not_remember_servers_when_disabled() {
+    Map<String, LdapContextFactory> contextFactories = new LinkedHashMap<>();
+    for (String serverKey : Arrays.asList("first", "second")) {
+      contextFactories.put(serverKey, new LdapContextFactory(new Settings(), "ldap." + serverKey, "ldap://" + serverKey));
+    }
+    LdapServerSelector selector = new LdapServerSelector(contextFactories);
+    selector.resolved("godin", "second");
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("first", "second");
+  }
+
+  @Test
+  public void should_query_servers_which_dont_know_login_last_when_logins_are_not_fresh() {
+    Map<String, LdapContextFactory> contextFactories = new LinkedHashMap<>();
+    for (String serverKey : Arrays.asList("first", "second", "third")) {
+      contextFactories.put(serverKey, new LdapContextFactory(new Settings(), "ldap." + serverKey, "ldap://" + serverKey));
+    }
+    LdapKnownLogins knownLogins = mock(LdapKnownLogins.class);
+    when(knownLogins.mightContain("tester")).thenReturn(true);
+    LdapServerSelector selector = new LdapServerSelector(contextFactories, 1, Collections.singletonMap("first", knownLogins));
+
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("second", "third", "first");
+    assertThat(selector.select("tester", contextFactories.keySet())).containsExactly("first", "second", "third");
+    assertThat(selector.mightContain("first", "godin")).isFalse();
+    assertThat(selector.mightContain("second", "godin")).isTrue();
+
+    // resolved since logins were loaded
+    selector.resolved("godin", "first");
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("first", "second", "third");
+  }
+
+  @Test
+  public void should_skip_servers_which_recently_loaded_logins_reject_login() {
+    Map<String, LdapContextFactory> contextFactories = new LinkedHashMap<>();
+    for (String serverKey : Arrays.asList("first", "second")) {
+      contextFactories.put(serverKey, new LdapContextFactory(new Settings(), "ldap." + serverKey, "ldap://" + serverKey));
+    }
+    LdapKnownLogins knownLogins = mock(LdapKnownLogins.class);
+    when(knownLogins.rejects("godin")).thenReturn(true);
+    when(knownLogins.mightContain("tester")).thenReturn(true);
+    LdapServerSelector selector = new LdapServerSelector(contextFactories, 1, Collections.singletonMap("first", knownLogins));
+
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("second");
+    assertThat(selector.select("tester", contextFactories.keySet())).containsExactly("first", "second");
+    assertThat(selector.rejects("first", "godin")).isTrue();
+    assertThat(selector.rejects("second", "godin")).isFalse();
+
+    // resolved since logins were loaded
+    selector.resolved("godin", "first");
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("first", "second");
+  }
+
+  @Test
+  public void should_skip_servers_with_open_circuit_breaker() {
+    Settings settings = new Settings().setProperty("ldap.first.circuitBreaker.failureThreshold", 1);
+    Map<String, LdapContextFactory> contextFactories = new LinkedHashMap<>();
+    for (String serverKey : Arrays.asList("first", "second")) {
+      contextFactories.put(serverKey, new LdapContextFactory(settings, "ldap." + serverKey, "ldap://" + serverKey));
+    }
+    LdapServerSelector selector = new LdapServerSelector(contextFactories);
+    contextFactories.get("first").recordFailure(new CommunicationException());
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("second");
+  }
+
+  @Test
+  public void should_keep_trial_of_half_open_server_until_request_sent() throws Exception {
+    Settings settings = new Settings()
+      .setProperty("ldap.second.circuitBreaker.failureThreshold", 1)
+      .setProperty("ldap.second.circuitBreaker.openDuration", 50);
+    Map<String, LdapContextFactory> contextFactories = new LinkedHashMap<>();
+    for (String serverKey : Arrays.asList("first", "second")) {
+      contextFactories.put(serverKey, new LdapContextFactory(settings, "ldap." + serverKey, "ldap://" + serverKey));
+    }
+    LdapServerSelector selector = new LdapServerSelector(contextFactories);
+    LdapContextFactory second = contextFactories.get("second");
+    second.recordFailure(new CommunicationException());
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("first");
+
+    Thread.sleep(100);
+    // logins resolved on first server never reach second one
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("first", "second");
+    assertThat(selector.select("tester", contextFactories.keySet())).containsExactly("first", "second");
+    assertThat(second.getCircuitBreaker().getState()).isEqualTo(State.OPEN);
+
+    // trial is granted when request is sent
+    String result = second.withFailover(target -> "result");
+    assertThat(result).isEqualTo("result");
+    assertThat(second.getCircuitBreaker().getState()).isEqualTo(State.CLOSED);
+    assertThat(selector.select("godin", contextFactories.keySet())).containsExactly("first", "second");
+  }
+
+  @Test
+  public void should_reopen_half_open_server_when_trial_fails() throws Exception {
+    Settings settings = new Settings()
+      .setProperty("ldap.first.circuitBreaker.failureThreshold", 1)
+      .setProperty("ldap.first.circuitBreaker.openDuration", 50);
+    LdapContextFactory first = new LdapContextFactory(settings, "ldap.first", "ldap://localhost:" + getUnusedPort());
+    LdapServerSelector selector = new LdapServerSelector(Collections.singletonMap("first", first));
+    first.recordFailure(new CommunicationException());
+    Thread.sleep(100);
+    assertThat(selector.select("godin", Collections.singleton("first"))).containsExactly("first");
+
+    try {
+      new LdapSearch(first).setBaseDn("dc=example,dc=org").setRequest("(uid={0})").setParameters("godin").find();
+      fail();
+    } catch (CommunicationException e) {
+      assertThat(first.getCircuitBreaker().getState()).isEqualTo(State.OPEN);
+    }
+    assertThat(selector.select("godin", Collections.singleton("first"))).isEmpty();
+  }
+
+  private static int getUnusedPort() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+}
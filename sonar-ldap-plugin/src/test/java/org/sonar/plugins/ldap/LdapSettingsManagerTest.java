@@ -89,7 +89,10 @@ public class LdapSettingsManagerTest {
     when(ldapAutodiscovery.getLdapServers("example.org")).thenReturn(Arrays.asList(ldap1, ldap2));
     LdapSettingsManager settingsManager = new LdapSettingsManager(
       generateAutodiscoverSettings(), ldapAutodiscovery);
-    assertThat(settingsManager.getContextFactories().size()).isEqualTo(2);
+    assertThat(settingsManager.getContextFactories().keySet()).containsExactly("<default>");
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().get("<default>");
+    assertThat(contextFactory.getProviderUrl()).isEqualTo("ldap://localhost:189 ldap://localhost:1899");
+    assertThat(contextFactory.getReplicas()).hasSize(2);
   }
 
   @Test
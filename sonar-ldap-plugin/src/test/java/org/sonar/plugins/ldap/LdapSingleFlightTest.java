@@ -0,0 +1,141 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class LdapSingleFlightTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final LdapSingleFlight<String, String> singleFlight = new LdapSingleFlight<>();
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final AtomicInteger calls = new AtomicInteger();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void should_share_result_of_call_in_flight() throws Exception {
+    Future<String> leader = executor.submit(() -> singleFlight.execute("godin", this::slowCall));
+    assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+    Future<String> follower = executor.submit(() -> singleFlight.execute("godin", this::slowCall));
+    awaitShared(1);
+    release.countDown();
+
+    assertThat(leader.get(5, TimeUnit.SECONDS)).isEqualTo("result");
+    assertThat(follower.get(5, TimeUnit.SECONDS)).isEqualTo("result");
+    assertThat(calls.get()).isEqualTo(1);
+    assertThat(singleFlight.getPendingCount()).isZero();
+  }
+
+  @Test
+  public void should_share_failure_of_call_in_flight() throws Exception {
+    Future<String> leader = executor.submit(() -> singleFlight.execute("godin", () -> {
+      slowCall();
+      throw new CommunicationException("Connection reset");
+    }));
+    assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+    Future<String> follower = executor.submit(() -> singleFlight.execute("godin", this::slowCall));
+    awaitShared(1);
+    release.countDown();
+
+    for (Future<String> future : new Future[] {leader, follower}) {
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail("CommunicationException expected");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(CommunicationException.class);
+      }
+    }
+    assertThat(calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_not_share_interruption_of_call_in_flight() throws Exception {
+    Future<String> leader = executor.submit(() -> singleFlight.execute("godin", () -> {
+      calls.incrementAndGet();
+      started.countDown();
+      try {
+        Thread.sleep(10_000);
+      } catch (InterruptedException e) {
+        throw new InterruptedNamingException("Interrupted");
+      }
+      return "leader";
+    }));
+    assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+    Future<String> follower = executor.submit(() -> singleFlight.execute("godin", () -> {
+      calls.incrementAndGet();
+      return "follower";
+    }));
+    awaitShared(1);
+    leader.cancel(true);
+
+    assertThat(follower.get(5, TimeUnit.SECONDS)).isEqualTo("follower");
+    assertThat(calls.get()).isEqualTo(2);
+    assertThat(singleFlight.getPendingCount()).isZero();
+  }
+
+  @Test
+  public void should_not_share_results_of_completed_or_different_calls() throws Exception {
+    release.countDown();
+    assertThat(singleFlight.execute("godin", this::slowCall)).isEqualTo("result");
+    assertThat(singleFlight.execute("godin", this::slowCall)).isEqualTo("result");
+    assertThat(singleFlight.execute("tester", this::slowCall)).isEqualTo("result");
+    assertThat(calls.get()).isEqualTo(3);
+    assertThat(singleFlight.getSharedCount()).isZero();
+  }
+
+  private String slowCall() throws NamingException {
+    calls.incrementAndGet();
+    started.countDown();
+    try {
+      release.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return "result";
+  }
+
+  private void awaitShared(long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (singleFlight.getSharedCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertThat(singleFlight.getSharedCount()).isEqualTo(count);
+  }
+
+}
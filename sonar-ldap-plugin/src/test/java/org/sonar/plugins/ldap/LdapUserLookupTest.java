@@ -0,0 +1,200 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.api.security.Authenticator;
+import org.sonar.api.security.ExternalGroupsProvider;
+import org.sonar.api.security.ExternalUsersProvider;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LdapUserLookupTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void should_search_user_once_per_request() {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    LdapRealm realm = new LdapRealm(settingsManager);
+    realm.init();
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().get("<default>");
+    HttpServletRequest request = newRequest();
+
+    int searches = contextFactory.getLatencies().getSampleCount();
+    assertThat(realm.doGetAuthenticator().doAuthenticate(new Authenticator.Context("godin", "secret1", request))).isTrue();
+    assertThat(realm.getUsersProvider().doGetUserDetails(new ExternalUsersProvider.Context("godin", request)).getName()).isEqualTo("Evgeny Mandrikov");
+    assertThat(realm.getGroupsProvider().doGetGroups(new ExternalGroupsProvider.Context("godin", request))).containsOnly("sonar-users", "sonar-developers");
+    // user search, and group search
+    assertThat(contextFactory.getLatencies().getSampleCount() - searches).isEqualTo(2);
+
+    // another request
+    searches = contextFactory.getLatencies().getSampleCount();
+    assertThat(realm.getUsersProvider().doGetUserDetails(new ExternalUsersProvider.Context("godin", newRequest())).getName()).isEqualTo("Evgeny Mandrikov");
+    assertThat(contextFactory.getLatencies().getSampleCount() - searches).isEqualTo(1);
+  }
+
+  @Test
+  public void should_share_unknown_users() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    LdapUserLookup userLookup = new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings());
+    HttpServletRequest request = newRequest();
+
+    assertThat(userLookup.isCached(request, "<default>", "unknown", null)).isFalse();
+    assertThat(userLookup.find(request, "<default>", "unknown", new String[] {"mail"})).isNull();
+    assertThat(userLookup.isCached(request, "<default>", "unknown", null)).isTrue();
+  }
+
+  @Test
+  public void should_search_again_when_attributes_not_provided() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    LdapUserLookup userLookup = new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings());
+    HttpServletRequest request = newRequest();
+
+    assertThat(userLookup.find(request, "<default>", "godin", new String[] {"mail"}).getAttributes().get("cn")).isNull();
+    assertThat(userLookup.isCached(request, "<default>", "godin", new String[] {"mail", "dn"})).isTrue();
+    assertThat(userLookup.isCached(request, "<default>", "godin", new String[] {"cn"})).isFalse();
+    assertThat(userLookup.isCached(request, "<default>", "godin", null)).isFalse();
+    assertThat(userLookup.find(request, "<default>", "godin", new String[] {"cn"}).getAttributes().get("cn")).isNotNull();
+    // requests aren't shared without request
+    assertThat(userLookup.isCached(null, "<default>", "godin", new String[] {"cn"})).isFalse();
+  }
+
+  @Test
+  public void should_request_attributes_needed_by_authenticator_and_providers() {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null)
+      .setProperty("ldap.group.request", "(&(objectClass=posixGroup)(memberUid={uid}))"), new LdapAutodiscovery());
+    LdapUserLookup userLookup = settingsManager.getUserLookup();
+    assertThat(userLookup.getUserAttributes("<default>")).containsExactly("mail", "cn", "uid");
+  }
+
+  @Test
+  public void should_only_return_dn_when_no_attributes_requested() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    LdapUserLookup userLookup = settingsManager.getUserLookup();
+    SearchResult result = userLookup.find(null, "<default>", "godin", ContextHelper.NO_ATTRIBUTES);
+    assertThat(result.getNameInNamespace()).isEqualTo("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+    assertThat(result.getAttributes().size()).isZero();
+
+    HttpServletRequest request = newRequest();
+    userLookup.find(request, "<default>", "godin");
+    assertThat(userLookup.isCached(request, "<default>", "godin", ContextHelper.NO_ATTRIBUTES)).isTrue();
+  }
+
+  @Test
+  public void should_keep_found_users_across_requests() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null)
+      .setProperty("ldap.userCache.size", 10), new LdapAutodiscovery());
+    LdapUserLookup userLookup = settingsManager.getUserLookup();
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().get("<default>");
+
+    int searches = contextFactory.getLatencies().getSampleCount();
+    assertThat(userLookup.find(newRequest(), "<default>", "godin").getNameInNamespace()).isEqualTo("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+    assertThat(userLookup.find(newRequest(), "<default>", "godin").getNameInNamespace()).isEqualTo("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+    assertThat(userLookup.find(null, "<default>", "godin", ContextHelper.NO_ATTRIBUTES)).isNotNull();
+    assertThat(contextFactory.getLatencies().getSampleCount() - searches).isEqualTo(1);
+    assertThat(userLookup.getUserCache().getHitCount()).isEqualTo(2);
+
+    // unknown users are not kept
+    assertThat(userLookup.find(newRequest(), "<default>", "unknown")).isNull();
+    assertThat(userLookup.isCached(newRequest(), "<default>", "unknown", null)).isFalse();
+
+    userLookup.invalidate("<default>", "godin");
+    assertThat(userLookup.isCached(null, "<default>", "godin", ContextHelper.NO_ATTRIBUTES)).isFalse();
+  }
+
+  @Test
+  public void should_search_again_when_bind_fails_with_kept_dn() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null)
+      .setProperty("ldap.userCache.size", 10), new LdapAutodiscovery());
+    LdapRealm realm = new LdapRealm(settingsManager);
+    realm.init();
+    LdapUserLookup userLookup = settingsManager.getUserLookup();
+    // user was moved since entry was kept
+    SearchResult moved = new SearchResult("cn=Evgeny Mandrikov,ou=former", null, new BasicAttributes(), true);
+    moved.setNameInNamespace("cn=Evgeny Mandrikov,ou=former,dc=example,dc=org");
+    userLookup.cache(null, "<default>", "godin", userLookup.getUserAttributes("<default>"), moved);
+    assertThat(userLookup.isKept("<default>", "godin")).isTrue();
+
+    assertThat(realm.doGetAuthenticator().doAuthenticate(new Authenticator.Context("godin", "secret1", newRequest()))).isTrue();
+    assertThat(userLookup.find(null, "<default>", "godin").getNameInNamespace()).isEqualTo("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+
+    // wrong password is checked only once when DN didn't change
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().get("<default>");
+    int searches = contextFactory.getLatencies().getSampleCount();
+    assertThat(realm.doGetAuthenticator().doAuthenticate(new Authenticator.Context("godin", "wrong", newRequest()))).isFalse();
+    assertThat(contextFactory.getLatencies().getSampleCount() - searches).isEqualTo(1);
+    assertThat(userLookup.isKept("<default>", "godin")).isFalse();
+  }
+
+  @Test
+  public void should_not_keep_users_across_requests_by_default() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    LdapUserLookup userLookup = settingsManager.getUserLookup();
+    assertThat(userLookup.getUserCache()).isNull();
+    userLookup.find(newRequest(), "<default>", "godin");
+    assertThat(userLookup.isCached(newRequest(), "<default>", "godin", ContextHelper.NO_ATTRIBUTES)).isFalse();
+  }
+
+  @Test
+  public void should_remember_unknown_logins_across_requests() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null)
+      .setProperty("ldap.unknownUserCache.size", 10), new LdapAutodiscovery());
+    LdapRealm realm = new LdapRealm(settingsManager);
+    realm.init();
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().get("<default>");
+
+    int searches = contextFactory.getLatencies().getSampleCount();
+    assertThat(realm.doGetAuthenticator().doAuthenticate(new Authenticator.Context("unknown", "secret", newRequest()))).isFalse();
+    assertThat(realm.doGetAuthenticator().doAuthenticate(new Authenticator.Context("unknown", "secret", newRequest()))).isFalse();
+    assertThat(realm.getUsersProvider().doGetUserDetails(new ExternalUsersProvider.Context("unknown", null))).isNull();
+    assertThat(contextFactory.getLatencies().getSampleCount() - searches).isEqualTo(1);
+    assertThat(settingsManager.getUserLookup().getUnknownUserCache().getHitCount()).isEqualTo(2);
+
+    // found users are not kept
+    assertThat(realm.doGetAuthenticator().doAuthenticate(new Authenticator.Context("godin", "secret1", newRequest()))).isTrue();
+    assertThat(settingsManager.getUserLookup().isCached(null, "<default>", "godin", ContextHelper.NO_ATTRIBUTES)).isFalse();
+
+    settingsManager.getUserLookup().invalidate("<default>", "unknown");
+    assertThat(settingsManager.getUserLookup().isCached(null, "<default>", "unknown", null)).isFalse();
+  }
+
+  private static HttpServletRequest newRequest() {
+    Map<String, Object> attributes = new HashMap<>();
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getAttribute(anyString())).thenAnswer(invocation -> attributes.get(invocation.<String>getArgument(0)));
+    doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1))).when(request).setAttribute(anyString(), any());
+    return request;
+  }
+
+}
@@ -58,6 +58,10 @@ public class LdapServer extends ExternalResource {
     return server.getUrl();
   }
 
+  public int getTlsSessionCount() {
+    return server.getTlsSessionCount();
+  }
+
   public void disableAnonymousAccess() {
     server.disableAnonymousAccess();
   }